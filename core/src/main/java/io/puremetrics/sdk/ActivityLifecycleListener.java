@@ -28,13 +28,16 @@ package io.puremetrics.sdk;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.os.Bundle;
 
 /**
  * This forms the backbone of the SDK which notifiers
- * for all lifecycle callbacks of all the activities in the application
+ * for all lifecycle callbacks of all the activities in the application.
+ * It also listens to memory callbacks to release the DB connection under memory pressure
  */
-class ActivityLifecycleListener implements Application.ActivityLifecycleCallbacks {
+class ActivityLifecycleListener implements Application.ActivityLifecycleCallbacks, ComponentCallbacks2 {
   @Override
   public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
   }
@@ -57,6 +60,8 @@ class ActivityLifecycleListener implements Application.ActivityLifecycleCallback
   public void onActivityStopped(Activity activity) {
     PureMetrics.stopActivity();
     if (!PureMetrics.isActivityInForground()) {
+      //Persist buffered events before the app can be killed in background
+      PureMetrics.flushEvents();
       //Send data to server
       PureMetrics._INSTANCE.scheduleDataSync();
     }
@@ -69,4 +74,20 @@ class ActivityLifecycleListener implements Application.ActivityLifecycleCallback
   @Override
   public void onActivityDestroyed(Activity activity) {
   }
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_BACKGROUND) {
+      PureMetrics.releaseResources();
+    }
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  @Override
+  public void onLowMemory() {
+    PureMetrics.releaseResources();
+  }
 }
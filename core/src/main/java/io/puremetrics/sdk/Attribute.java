@@ -0,0 +1,68 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A user or device attribute with its value as JSON text
+ */
+final class Attribute {
+  /**
+   * {@link Constants#ATTRIBUTE_TYPE_USER} or {@link Constants#ATTRIBUTE_TYPE_DEVICE}
+   */
+  final int type;
+  final String name;
+  /**
+   * The value as JSON text
+   */
+  final String value;
+
+  Attribute(int type, String name, String value) {
+    this.type = type;
+    this.name = name;
+    this.value = value;
+  }
+
+  /**
+   * Converts an attribute value to JSON text
+   * @param value The value, a String, Number or Boolean
+   * @return the JSON text of the value
+   * @throws JSONException if the value is a number which is not valid JSON
+   */
+  static String toJsonValue(Object value) throws JSONException {
+    if (null == value || JSONObject.NULL.equals(value)) {
+      return "null";
+    } else if (value instanceof Number) {
+      return JSONObject.numberToString((Number) value);
+    } else if (value instanceof Boolean) {
+      return value.toString();
+    }
+    return JSONObject.quote(value.toString());
+  }
+}
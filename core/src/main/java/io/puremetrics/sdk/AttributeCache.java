@@ -0,0 +1,193 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * An in-memory copy of the stored attributes in front of {@link DBHelper}.
+ * Setting an attribute to the value it already has is ignored, changed attributes are
+ * collected and written in a single transaction on the storage lane of the {@link TaskManager}.
+ * Since only changed attributes are written, only they are part of the next upload.
+ */
+final class AttributeCache {
+
+  private final Object lock = new Object();
+  /**
+   * Held for a whole flush, so that a value is never written after a newer one for the same attribute
+   */
+  private final Object flushLock = new Object();
+  private final DBHelper databaseHelper;
+  /**
+   * The last written value of every attribute keyed by {@link #key(int, String)},
+   * null until it is loaded from the DB by the first flush
+   */
+  private HashMap<String, String> values = null;
+  /**
+   * Changed attributes which are not written yet
+   */
+  private LinkedHashMap<String, Attribute> dirty = new LinkedHashMap<>();
+  private boolean flushQueued = false;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushNow();
+    }
+  };
+
+  AttributeCache(DBHelper databaseHelper) {
+    this.databaseHelper = databaseHelper;
+  }
+
+  /**
+   * Sets an attribute. Does not touch the DB, the change is written by a flush
+   * @param type  {@link Constants#ATTRIBUTE_TYPE_USER} or {@link Constants#ATTRIBUTE_TYPE_DEVICE}
+   * @param name  The name of the attribute
+   * @param value The value of the attribute, a String, Number or Boolean
+   */
+  void put(int type, String name, Object value) {
+    String json;
+    try {
+      json = Attribute.toJsonValue(value);
+    } catch (JSONException e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Invalid value for attribute " + name, e);
+      return;
+    }
+    String key = key(type, name);
+    synchronized (lock) {
+      if (null != values && json.equals(values.get(key))) {
+        //the value is stored already, a pending change to another value is reverted
+        dirty.remove(key);
+        return;
+      }
+      dirty.put(key, new Attribute(type, name, json));
+      if (flushQueued) {
+        return;
+      }
+      flushQueued = true;
+    }
+    TaskManager.getInstance().executeStorageTask(flushTask);
+  }
+
+  /**
+   * Forgets the attributes of a type, the next value set for them is written even if it is unchanged
+   * @param type {@link Constants#ATTRIBUTE_TYPE_USER} or {@link Constants#ATTRIBUTE_TYPE_DEVICE}
+   */
+  void clear(int type) {
+    synchronized (lock) {
+      String prefix = type + ":";
+      if (null != values) {
+        values.keySet().removeAll(keysWithPrefix(values.keySet(), prefix));
+      }
+      dirty.keySet().removeAll(keysWithPrefix(dirty.keySet(), prefix));
+    }
+  }
+
+  /**
+   * Writes the changed attributes to the DB on the storage lane of the {@link TaskManager}
+   *
+   * @return the {@link Future} of the flush, null if it could not be submitted
+   */
+  Future<?> flush() {
+    return TaskManager.getInstance().executeStorageTask(flushTask);
+  }
+
+  /**
+   * Writes the changed attributes to the DB on the calling thread.
+   * Only called on the storage lane.
+   */
+  void flushNow() {
+    synchronized (flushLock) {
+      writeChanges();
+    }
+  }
+
+  private void writeChanges() {
+    boolean loaded;
+    synchronized (lock) {
+      loaded = null != values;
+    }
+    HashMap<String, String> stored = null;
+    if (!loaded) {
+      stored = new HashMap<>();
+      for (Attribute attribute : databaseHelper.loadAttributes()) {
+        stored.put(key(attribute.type, attribute.name), attribute.value);
+      }
+    }
+    List<Attribute> changed = new ArrayList<>();
+    synchronized (lock) {
+      flushQueued = false;
+      if (null == values) {
+        values = stored;
+      }
+      for (Attribute attribute : dirty.values()) {
+        String key = key(attribute.type, attribute.name);
+        if (!attribute.value.equals(values.get(key))) {
+          values.put(key, attribute.value);
+          changed.add(attribute);
+        }
+      }
+      dirty = new LinkedHashMap<>();
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+    if (!databaseHelper.storeAttributes(changed)) {
+      synchronized (lock) {
+        //keep the attributes which were not changed again in the meantime for the next flush
+        for (Attribute attribute : changed) {
+          String key = key(attribute.type, attribute.name);
+          values.remove(key);
+          if (!dirty.containsKey(key)) {
+            dirty.put(key, attribute);
+          }
+        }
+      }
+    }
+  }
+
+  private static String key(int type, String name) {
+    return type + ":" + name;
+  }
+
+  private static List<String> keysWithPrefix(Iterable<String> keys, String prefix) {
+    List<String> matching = new ArrayList<>();
+    for (String key : keys) {
+      if (key.startsWith(prefix)) {
+        matching.add(key);
+      }
+    }
+    return matching;
+  }
+}
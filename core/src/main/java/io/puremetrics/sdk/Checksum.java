@@ -0,0 +1,129 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * An incremental MD5 checksum on top of the bundled {@link MD5} implementation.
+ * The data can be fed in chunks as it is produced, the checksum is hex encoded
+ * without any per byte allocation.
+ */
+final class Checksum {
+
+  private static final char[] HEX_DIGITS = {
+          '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+  };
+
+  // MessageDigest.getInstance(String) is not threadsafe on Android.
+  // See https://code.google.com/p/android/issues/detail?id=37937
+  // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
+  // This implementation does not throw NoSuchAlgorithm exceptions.
+  private final MessageDigest digest = new MD5();
+
+  /**
+   * Computes the hex encoded MD5 checksum of the data
+   *
+   * @param data The data for which the checksum is computed
+   * @return a hex string representing the checksum
+   */
+  static String of(byte[] data) {
+    Checksum checksum = new Checksum();
+    checksum.update(data, 0, data.length);
+    return checksum.hexDigest();
+  }
+
+  /**
+   * Hex encodes bytes using a lookup table
+   *
+   * @param bytes The bytes to be encoded
+   * @return a lower case hex string
+   */
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length << 1];
+    for (int i = 0, j = 0; i < bytes.length; i++) {
+      int b = bytes[i] & 0xFF;
+      chars[j++] = HEX_DIGITS[b >>> 4];
+      chars[j++] = HEX_DIGITS[b & 0x0F];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Feeds a chunk of data to the checksum
+   *
+   * @param input  Buffer holding the data
+   * @param offset Offset of the chunk in the buffer
+   * @param length Length of the chunk
+   */
+  void update(byte[] input, int offset, int length) {
+    digest.update(input, offset, length);
+  }
+
+  /**
+   * Feeds a single byte to the checksum
+   *
+   * @param input The byte
+   */
+  void update(byte input) {
+    digest.update(input);
+  }
+
+  /**
+   * Completes the checksum and resets it
+   *
+   * @return a hex string representing the checksum of all the data fed so far
+   */
+  String hexDigest() {
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Wraps an {@link OutputStream} so that everything written to it is fed to the checksum
+   *
+   * @param out The {@link OutputStream} to be wrapped
+   * @return an {@link OutputStream} writing to out
+   */
+  OutputStream wrap(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        update((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        update(b, off, len);
+      }
+    };
+  }
+}
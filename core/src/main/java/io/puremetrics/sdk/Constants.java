@@ -33,6 +33,10 @@ final class Constants {
    * SQLite Database name
    */
   static final String DATABASE_NAME = "pm.db";
+  /**
+   * Number of pages SQLite keeps in its page cache for {@link #DATABASE_NAME}
+   */
+  static final int DATABASE_CACHE_SIZE_PAGES = 512;
   /**
    * Table name for Events
    */
@@ -51,6 +55,19 @@ final class Constants {
    * COLUMN Attribute type for table {@link #TABLE_NAME_PROPERTIES}
    */
   static final String COLUMN_ATTRIBUTE_TYPE = "type";
+  /**
+   * COLUMN Attribute name for table {@link #TABLE_NAME_PROPERTIES}, unique per {@link #COLUMN_ATTRIBUTE_TYPE}
+   */
+  static final String COLUMN_ATTRIBUTE_NAME = "name";
+  /**
+   * COLUMN Attribute version for table {@link #TABLE_NAME_PROPERTIES}, incremented whenever the value changes
+   */
+  static final String COLUMN_ATTRIBUTE_VERSION = "version";
+  /**
+   * COLUMN for table {@link #TABLE_NAME_PROPERTIES} with the last {@link #COLUMN_ATTRIBUTE_VERSION}
+   * acknowledged by the server
+   */
+  static final String COLUMN_ATTRIBUTE_ACKED_VERSION = "acked_version";
   /**
    * Attribute type USER for Database table {@link #TABLE_NAME_PROPERTIES}
    */
@@ -64,7 +81,12 @@ final class Constants {
    */
   static final String COLUMN_EVENTS_EV_JSON_STR = "event_value";
   /**
-   * Column of {@link #TABLE_NAME_PROPERTIES} table which has the attribute information
+   * Column of {@link #TABLE_NAME_EVENTS} table which has the event encoded by {@link EventCodec}.
+   * Events stored before database version 2 only have {@link #COLUMN_EVENTS_EV_JSON_STR}
+   */
+  static final String COLUMN_EVENTS_EV_RECORD = "event_record";
+  /**
+   * Column of {@link #TABLE_NAME_PROPERTIES} table which has the attribute value as JSON
    */
   static final String COLUMN_ATTRIBUTES_JSON_STR = "attr_value";
   /**
@@ -80,9 +102,131 @@ final class Constants {
    */
   static final long DEFAULT_SESSION_DURATION = 1800000L;
   /**
-   * Preference file name for PureMetrics
+   * Default number of events buffered in memory before they are written to the DB
+   */
+  static final int DEFAULT_EVENT_BATCH_SIZE = 20;
+  /**
+   * Default time in milliseconds an event can stay buffered in memory before it is written to the DB
+   */
+  static final long DEFAULT_EVENT_FLUSH_DELAY = 5000L;
+  /**
+   * Default maximum number of events held in memory before the overflow policy applies
+   */
+  static final int DEFAULT_MAX_PENDING_EVENTS = 1000;
+  /**
+   * Default policy applied when the in-memory queues are full
+   */
+  static final PureMetrics.OVERFLOW_POLICY DEFAULT_OVERFLOW_POLICY = PureMetrics.OVERFLOW_POLICY.DROP_OLDEST;
+  /**
+   * Default time in milliseconds a caller waits for space with {@link PureMetrics.OVERFLOW_POLICY#BLOCK}
+   */
+  static final long DEFAULT_OVERFLOW_BLOCK_TIMEOUT = 100L;
+  /**
+   * Maximum number of tasks queued on the {@link TaskManager}
+   */
+  static final int TASK_QUEUE_CAPACITY = 256;
+  /**
+   * Maximum number of threads used for work which does not write to the DB
+   */
+  static final int MAX_WORKER_THREADS = 2;
+  /**
+   * Time in seconds an idle {@link TaskManager} thread waits before terminating
+   */
+  static final int TASK_THREAD_KEEP_ALIVE_SECONDS = 30;
+  /**
+   * Directory in the app files directory holding the segments of the {@link MappedEventLog}
+   */
+  static final String EVENT_LOG_DIRECTORY = "puremetrics-events";
+  /**
+   * Size of a {@link MappedEventLog} segment file
+   */
+  static final int EVENT_LOG_SEGMENT_SIZE = 1024 * 1024;
+  /**
+   * Estimated ratio between the size of an event as JSON and as an {@link EventCodec} record,
+   * used to bound the size of an upload chunk
+   */
+  static final int EVENT_RECORD_EXPANSION = 2;
+  /**
+   * The default endpoint uploads are posted to
+   */
+  static final String UPLOAD_URL = "https://api.puremetrics.io/v1/track";
+  /**
+   * Default connect and read timeout of an upload request in milliseconds
+   */
+  static final int UPLOAD_TIMEOUT = 13000;
+  /**
+   * Number of times a request is sent again when the server responds with a 412
+   */
+  static final int MAX_PRECONDITION_RETRIES = 2;
+  /**
+   * Delay in milliseconds before a request is sent again after a 412, doubled for the second retry
+   */
+  static final long PRECONDITION_RETRY_DELAY = 250;
+  /**
+   * Delay in milliseconds before the first retry of a failed sync
+   */
+  static final long UPLOAD_RETRY_BASE_DELAY = 5000;
+  /**
+   * Maximum delay in milliseconds before a failed sync is retried
+   */
+  static final long UPLOAD_RETRY_MAX_DELAY = 60 * 60 * 1000L;
+  /**
+   * Number of consecutive failed syncs which are retried on a timer
+   */
+  static final int MAX_UPLOAD_RETRIES = 8;
+  /**
+   * Time in milliseconds after which a sync which was scheduled but never started is scheduled again
+   */
+  static final long SYNC_STALE_TIMEOUT = 60 * 1000L;
+  /**
+   * Default number of stored events which triggers a sync, one upload page
+   */
+  static final int DEFAULT_FLUSH_MAX_EVENTS = 500;
+  /**
+   * Default size in bytes of the stored events which triggers a sync
+   */
+  static final long DEFAULT_FLUSH_MAX_BYTES = 128 * 1024L;
+  /**
+   * Default age in milliseconds of the oldest stored event which triggers a sync
+   */
+  static final long DEFAULT_FLUSH_MAX_AGE = 15 * 60 * 1000L;
+  /**
+   * Minimum time in milliseconds before the flush policy triggers again after a sync which did not upload
+   */
+  static final long FLUSH_REARM_DELAY = 60 * 1000L;
+  /**
+   * Default maximum number of requests in flight with {@link PureMetrics.TRANSPORT#PIPELINED}
+   */
+  static final int DEFAULT_MAX_INFLIGHT_UPLOADS = 3;
+  /**
+   * Maximum number of events read from the DB for a single upload request
+   */
+  static final int UPLOAD_PAGE_SIZE = 500;
+  /**
+   * Maximum size in bytes of the stored events sent in a single upload request
+   */
+  static final int UPLOAD_CHUNK_MAX_BYTES = 128 * 1024;
+  /**
+   * Room in bytes reserved for the attributes and the request level fields
+   * on top of the events in a request body
+   */
+  static final int REQUEST_OVERHEAD_BYTES = 4096;
+  /**
+   * Default gzip compression level for the request body, a balance of speed and size
+   */
+  static final int DEFAULT_COMPRESSION_LEVEL = 6;
+  /**
+   * Size of the buffer used while gzip compressing the request body
+   */
+  static final int GZIP_BUFFER_SIZE = 8192;
+  /**
+   * Preference file name for PureMetrics, the state is migrated from it to {@link #STATE_FILE_NAME}
    */
   static final String SHARED_PREF_NAME = "pm-pref";
+  /**
+   * File in the app files directory holding the {@link StateFile}
+   */
+  static final String STATE_FILE_NAME = "puremetrics.state";
   /**
    * Http Method Post
    */
@@ -95,7 +239,8 @@ final class Constants {
   }
 
   /**
-   * SharedPreference keys for properties which need to be retained by the SDK
+   * SharedPreference keys for properties which were retained by the SDK before the {@link StateFile}.
+   * Only used to migrate them
    */
   interface PREF_KEYS {
     /**
@@ -339,21 +484,21 @@ final class Constants {
      */
     String CONTENT_TYPE = "Content-Type";
     /**
-     * Content type value application/json
+     * Content Encoding
      */
-    String VALUE_APPLICATION_JSON = "application/json;";
+    String CONTENT_ENCODING = "Content-Encoding";
     /**
-     * Basic Authorization value prefix
+     * Content encoding value gzip
      */
-    String BASIC_AUTH_PREFIX = "basic ";
+    String VALUE_GZIP = "gzip";
     /**
-     * Connection header
+     * Content type value application/json
      */
-    String CONNECTION = "Connection";
+    String VALUE_APPLICATION_JSON = "application/json;";
     /**
-     * Connection header value close
+     * Basic Authorization value prefix
      */
-    String CLOSE = "close";
+    String BASIC_AUTH_PREFIX = "basic ";
   }
 
   /**
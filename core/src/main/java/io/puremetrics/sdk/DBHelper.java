@@ -26,37 +26,113 @@
  */
 package io.puremetrics.sdk;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * A java class of the type {@link SQLiteOpenHelper}
- * which helps manage the SQLite DB maintained by PureMetrics
+ * which helps manage the SQLite DB maintained by PureMetrics.
+ * Holds the attributes, and the events when {@link PureMetrics.STORAGE_ENGINE#SQLITE} is used
  */
-class DBHelper extends SQLiteOpenHelper {
+class DBHelper extends SQLiteOpenHelper implements EventStore {
 
-  private static final int DATABASE_VERSION = 1;
-  private static final String CREATE_TABLE_EVENTS = "CREATE TABLE " + Constants.TABLE_NAME_EVENTS
+  private static final int DATABASE_VERSION = 4;
+  static final String CREATE_TABLE_EVENTS = "CREATE TABLE " + Constants.TABLE_NAME_EVENTS
           + "( " + Constants.COLUMN_EVENTS_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
           + Constants.COLUMN_EVENTS_SESSION + "  INTEGER, "
-          + Constants.COLUMN_EVENTS_EV_JSON_STR + " TEXT );";
-  private static final String CREATE_TABLE_PROPERTIES = "CREATE TABLE " + Constants.TABLE_NAME_PROPERTIES
+          + Constants.COLUMN_EVENTS_EV_JSON_STR + " TEXT, "
+          + Constants.COLUMN_EVENTS_EV_RECORD + " BLOB );";
+  private static final String ADD_COLUMN_EVENT_RECORD = "ALTER TABLE " + Constants.TABLE_NAME_EVENTS
+          + " ADD COLUMN " + Constants.COLUMN_EVENTS_EV_RECORD + " BLOB";
+  static final String CREATE_TABLE_PROPERTIES = "CREATE TABLE " + Constants.TABLE_NAME_PROPERTIES
           + "( " + Constants.COLUMN_EVENTS_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
           + Constants.COLUMN_ATTRIBUTE_TYPE + "  INTEGER, "
-          + Constants.COLUMN_ATTRIBUTES_JSON_STR + " TEXT );";
+          + Constants.COLUMN_ATTRIBUTE_NAME + " TEXT, "
+          + Constants.COLUMN_ATTRIBUTES_JSON_STR + " TEXT, "
+          + Constants.COLUMN_ATTRIBUTE_VERSION + " INTEGER NOT NULL DEFAULT 1, "
+          + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+          + "UNIQUE (" + Constants.COLUMN_ATTRIBUTE_TYPE + ", " + Constants.COLUMN_ATTRIBUTE_NAME + ") );";
+  private static final String[] ADD_COLUMNS_ATTRIBUTE_VERSION = {
+          "ALTER TABLE " + Constants.TABLE_NAME_PROPERTIES
+                  + " ADD COLUMN " + Constants.COLUMN_ATTRIBUTE_VERSION + " INTEGER NOT NULL DEFAULT 1",
+          "ALTER TABLE " + Constants.TABLE_NAME_PROPERTIES
+                  + " ADD COLUMN " + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION + " INTEGER NOT NULL DEFAULT 0"};
+  /**
+   * Replaces the value of an attribute and increments its version, keeping the acknowledged version.
+   * Nothing is written if the value is unchanged.
+   * Arguments: type, name, value as JSON
+   */
+  static final String UPSERT_ATTRIBUTE = "INSERT OR REPLACE INTO " + Constants.TABLE_NAME_PROPERTIES
+          + "(" + Constants.COLUMN_ATTRIBUTE_TYPE + ", " + Constants.COLUMN_ATTRIBUTE_NAME + ", "
+          + Constants.COLUMN_ATTRIBUTES_JSON_STR + ", " + Constants.COLUMN_ATTRIBUTE_VERSION + ", "
+          + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION + ") "
+          + "SELECT ?1, ?2, ?3, v + 1, a FROM ("
+          + "SELECT ifnull(MAX(" + Constants.COLUMN_ATTRIBUTE_VERSION + "), 0) AS v, "
+          + "ifnull(MAX(" + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION + "), 0) AS a, "
+          + "MAX(" + Constants.COLUMN_ATTRIBUTES_JSON_STR + ") AS current FROM " + Constants.TABLE_NAME_PROPERTIES
+          + " WHERE " + Constants.COLUMN_ATTRIBUTE_TYPE + "=?1 AND " + Constants.COLUMN_ATTRIBUTE_NAME + "=?2"
+          + ") WHERE current IS NOT ?3";
+  private static final String WHERE_ATTRIBUTE_CHANGED = Constants.COLUMN_ATTRIBUTE_VERSION + ">"
+          + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION;
+  /**
+   * Name and value of the attributes of a type changed since they were last acknowledged.
+   * Arguments: type, last attribute id
+   */
+  static final String SELECT_CHANGED_ATTRIBUTES = "SELECT " + Constants.COLUMN_ATTRIBUTE_NAME + ", "
+          + Constants.COLUMN_ATTRIBUTES_JSON_STR + " FROM " + Constants.TABLE_NAME_PROPERTIES
+          + " WHERE " + Constants.COLUMN_ATTRIBUTE_TYPE + "=? AND " + Constants.COLUMN_EVENTS_ID + "<=? AND "
+          + WHERE_ATTRIBUTE_CHANGED;
+  /**
+   * Largest id of the attributes changed since they were last acknowledged
+   */
+  static final String SELECT_LAST_CHANGED_ATTRIBUTE_ID = "SELECT MAX(" + Constants.COLUMN_EVENTS_ID + ") FROM "
+          + Constants.TABLE_NAME_PROPERTIES + " WHERE " + WHERE_ATTRIBUTE_CHANGED;
+  /**
+   * Marks the uploaded versions as acknowledged.
+   * A value changed after the upload was read has a larger id and stays changed.
+   * Arguments: last attribute id
+   */
+  static final String ACKNOWLEDGE_ATTRIBUTES = "UPDATE " + Constants.TABLE_NAME_PROPERTIES
+          + " SET " + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION + "=" + Constants.COLUMN_ATTRIBUTE_VERSION
+          + " WHERE " + Constants.COLUMN_EVENTS_ID + "<=?";
+  private static final String TABLE_NAME_LEGACY_PROPERTIES = Constants.TABLE_NAME_PROPERTIES + "_legacy";
+  static final String INSERT_EVENT = "INSERT INTO " + Constants.TABLE_NAME_EVENTS
+          + "(" + Constants.COLUMN_EVENTS_SESSION + ", " + Constants.COLUMN_EVENTS_EV_RECORD
+          + ") VALUES (?, ?)";
   /**
    * Internal static instance of DBHelper
    */
   private static DBHelper _INSTANCE = null;
-  private final Object lock = new Object();
-  private final String[] EVENT_COLUMNS = {Constants.COLUMN_EVENTS_ID, Constants.COLUMN_EVENTS_SESSION, Constants.COLUMN_EVENTS_EV_JSON_STR};
-  private final String[] COLUMNS_ATTRIBUTES = {Constants.COLUMN_ATTRIBUTES_JSON_STR};
+  /**
+   * Guards inserts and deletes. SQLite allows only a single writer at a time
+   */
+  private final Object writeLock = new Object();
+  /**
+   * Guards the upload reads. With write-ahead logging the reads run on their own
+   * connection and never wait for the {@link #writeLock}, so appends are not blocked
+   * while a large upload payload is being built
+   */
+  private final Object readLock = new Object();
+  private final String[] EVENT_COLUMNS = {Constants.COLUMN_EVENTS_ID, Constants.COLUMN_EVENTS_SESSION,
+          Constants.COLUMN_EVENTS_EV_JSON_STR, Constants.COLUMN_EVENTS_EV_RECORD};
+  /**
+   * Estimated size of the events as JSON, binary records are expanded by {@link Constants#EVENT_RECORD_EXPANSION}
+   */
+  private final String[] EVENT_SIZE_COLUMNS = {Constants.COLUMN_EVENTS_ID,
+          "ifnull(length(" + Constants.COLUMN_EVENTS_EV_RECORD + ") * " + Constants.EVENT_RECORD_EXPANSION
+                  + ", length(" + Constants.COLUMN_EVENTS_EV_JSON_STR + "))"};
 
   private DBHelper(Context context) {
     super(context, Constants.DATABASE_NAME, null, DATABASE_VERSION);
@@ -80,255 +156,480 @@ class DBHelper extends SQLiteOpenHelper {
     db.execSQL(CREATE_TABLE_PROPERTIES);
   }
 
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    applyStorageProfile(db);
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    //onConfigure is only available from Jelly Bean
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      applyStorageProfile(db);
+    }
+  }
+
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    //not needed as of now
+    //The storage profile is applied on every open, and the journal mode is persisted
+    //in the DB file itself, so existing installs switch to WAL without a schema migration
+    if (oldVersion < 2) {
+      //events stored as JSON text before version 2 stay in their column and are uploaded as they are
+      db.execSQL(ADD_COLUMN_EVENT_RECORD);
+    }
+    if (oldVersion < 3) {
+      //the migrated table is created with the version columns already
+      migrateAttributes(db);
+    } else if (oldVersion < 4) {
+      //attributes stored by version 3 were never uploaded, they keep the default version 1 and stay changed
+      for (String statement : ADD_COLUMNS_ATTRIBUTE_VERSION) {
+        db.execSQL(statement);
+      }
+    }
+  }
+
+  /**
+   * Moves the attributes to the table keyed by type and name.
+   * Before version 3 every call stored a row holding a {@code "name" : value} fragment,
+   * the rows are replayed in order so that the last value of every attribute is kept
+   * @param db The {@link SQLiteDatabase} being upgraded
+   */
+  private void migrateAttributes(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + Constants.TABLE_NAME_PROPERTIES + " RENAME TO " + TABLE_NAME_LEGACY_PROPERTIES);
+    db.execSQL(CREATE_TABLE_PROPERTIES);
+    Cursor dataset = db.query(TABLE_NAME_LEGACY_PROPERTIES,
+            new String[]{Constants.COLUMN_ATTRIBUTE_TYPE, Constants.COLUMN_ATTRIBUTES_JSON_STR},
+            null, null, null, null, Constants.COLUMN_EVENTS_ID + " ASC");
+    try {
+      while (dataset.moveToNext()) {
+        try {
+          JSONObject fragment = new JSONObject("{" + dataset.getString(1) + "}");
+          Iterator<String> names = fragment.keys();
+          while (names.hasNext()) {
+            String name = names.next();
+            db.execSQL(UPSERT_ATTRIBUTE, new Object[]{dataset.getInt(0), name,
+                    Attribute.toJsonValue(fragment.get(name))});
+          }
+        } catch (Throwable e) {
+          PureMetrics.log(PureMetrics.LOG_LEVEL.WARN, "Dropping unreadable attribute record", e);
+        }
+      }
+    } finally {
+      dataset.close();
+    }
+    db.execSQL("DROP TABLE " + TABLE_NAME_LEGACY_PROPERTIES);
+  }
+
+  /**
+   * Applies the storage profile for the DB.
+   * Enables write-ahead logging so that the upload reads do not block event inserts,
+   * and relaxes the fsync behaviour which is safe with WAL.
+   * @param db The {@link SQLiteDatabase} being opened
+   */
+  private void applyStorageProfile(SQLiteDatabase db) {
+    try {
+      if (!db.isReadOnly()) {
+        db.enableWriteAheadLogging();
+      }
+      db.execSQL("PRAGMA synchronous=NORMAL");
+      db.execSQL("PRAGMA temp_store=MEMORY");
+      db.execSQL("PRAGMA cache_size=" + Constants.DATABASE_CACHE_SIZE_PAGES);
+    } catch (Throwable e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "applyStorageProfile", e);
+    }
+  }
+
+  @Override
+  public void release() {
+    closeConnection();
+  }
+
+  /**
+   * Closes the underlying database connection.
+   * The connection is otherwise kept open for the lifetime of the process,
+   * since {@link #getWritableDatabase()} hands back the cached instance
+   * and reopening the file for every event costs far more than the insert.
+   * The next DB operation transparently reopens it.
+   */
+  void closeConnection() {
+    //always acquire the readLock before the writeLock
+    synchronized (readLock) {
+      synchronized (writeLock) {
+        try {
+          close();
+          PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Closed DB connection");
+        } catch (Throwable e) {
+          PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "closeConnection", e);
+        }
+      }
+    }
   }
 
   /**
-   * Stores event data
-   * @param event_data Event information which needs to be stored
+   * Stores a batch of events in a single transaction
+   * @param events The events which need to be stored
    */
-  void storeEvents(String event_data) {
-    synchronized (lock) {
-      long result = -1;
+  @Override
+  public boolean storeEvents(Collection<Event> events) {
+    synchronized (writeLock) {
+      SQLiteDatabase db = null;
       try {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Constants.COLUMN_EVENTS_SESSION, PureMetrics.getInstance().sessionId);
-        contentValues.put(Constants.COLUMN_EVENTS_EV_JSON_STR, event_data);
-        result = db.insertWithOnConflict(
-                Constants.TABLE_NAME_EVENTS,
-                null,
-                contentValues,
-                SQLiteDatabase.CONFLICT_REPLACE
-        );
-        if (result == -1) {
-          PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Failed to insert event record");
-        } else {
-          PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Stored event record: " + event_data);
+        db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement statement = db.compileStatement(INSERT_EVENT);
+        try {
+          for (Event event : events) {
+            byte[] record;
+            try {
+              record = event.toRecord();
+            } catch (Throwable e) {
+              PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Skipping event " + event.name, e);
+              continue;
+            }
+            statement.bindLong(1, event.sessionId);
+            statement.bindBlob(2, record);
+            statement.executeInsert();
+          }
+        } finally {
+          statement.close();
         }
+        db.setTransactionSuccessful();
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Stored event records: " + events.size());
+        return true;
       } catch (Throwable e) {
         PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "While inserting events", e);
       } finally {
-        close();
+        if (null != db && db.inTransaction()) {
+          db.endTransaction();
+        }
       }
     }
+    return false;
   }
 
   /**
-   * Stores the attribute data to the table
-   * @param data The attribute data which needs to be saved
-   * @param type The type of attribute.
-   *             it can be of the following types:
-   *             {@link Constants#ATTRIBUTE_TYPE_DEVICE}
-   *             {@link Constants#ATTRIBUTE_TYPE_USER}
+   * Stores a batch of attributes in a single transaction, replacing the values stored earlier for the same names.
+   * Every changed value gets a new version and is part of the next upload, unchanged values are skipped.
+   * A replaced attribute gets a new id, so a value changed while an upload is in progress
+   * is not acknowledged along with the uploaded one
+   * @param attributes The attributes which need to be stored
+   * @return true if the attributes were stored
    */
-  private void storeAttributes(String data, int type) {
-    synchronized (lock) {
-      long result = -1;
+  boolean storeAttributes(Collection<Attribute> attributes) {
+    synchronized (writeLock) {
+      SQLiteDatabase db = null;
       try {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Constants.COLUMN_ATTRIBUTE_TYPE, type);
-        contentValues.put(Constants.COLUMN_ATTRIBUTES_JSON_STR, data);
-        result = db.insertWithOnConflict(
-                Constants.TABLE_NAME_PROPERTIES,
-                null,
-                contentValues,
-                SQLiteDatabase.CONFLICT_REPLACE
-        );
-        if (result == -1) {
-          PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Failed to insert attribute record");
-        } else {
-          PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Stored attribute record: " + data);
+        db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement statement = db.compileStatement(UPSERT_ATTRIBUTE);
+        int changed = 0;
+        try {
+          for (Attribute attribute : attributes) {
+            statement.bindLong(1, attribute.type);
+            statement.bindString(2, attribute.name);
+            statement.bindString(3, attribute.value);
+            changed += statement.executeUpdateDelete();
+          }
+        } finally {
+          statement.close();
         }
+        db.setTransactionSuccessful();
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Stored attribute records: " + changed);
+        return true;
       } catch (Throwable e) {
         PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "While inserting ATTRIBUTES", e);
       } finally {
-        close();
+        if (null != db && db.inTransaction()) {
+          db.endTransaction();
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads all the stored attributes, whether they have been acknowledged or not
+   * @return the stored attributes, empty if they could not be read
+   */
+  List<Attribute> loadAttributes() {
+    List<Attribute> attributes = new ArrayList<>();
+    synchronized (readLock) {
+      Cursor dataset = null;
+      try {
+        SQLiteDatabase db = getReadableDatabase();
+        dataset = db.query(Constants.TABLE_NAME_PROPERTIES,
+                new String[]{Constants.COLUMN_ATTRIBUTE_TYPE, Constants.COLUMN_ATTRIBUTE_NAME,
+                        Constants.COLUMN_ATTRIBUTES_JSON_STR},
+                null, null, null, null, null);
+        while (dataset.moveToNext()) {
+          attributes.add(new Attribute(dataset.getInt(0), dataset.getString(1), dataset.getString(2)));
+        }
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "loadAttributes", e);
+      } finally {
+        if (null != dataset && !dataset.isClosed()) {
+          dataset.close();
+        }
       }
     }
+    return attributes;
+  }
+
+  @Override
+  public long getLastEventId() {
+    return getLastId(Constants.TABLE_NAME_EVENTS);
   }
 
   /**
-   * Store user attributes
-   * @param data The user attribute data to be stored
+   * Get the id of the last attribute changed since the last acknowledged upload.
+   * Used as the upper bound of the attributes which are uploaded
+   * @return the largest attribute id or -1 if no attribute has changed
    */
-  void storeUserAttributes(String data) {
-    storeAttributes(data, Constants.ATTRIBUTE_TYPE_USER);
+  long getLastAttributeId() {
+    return getLastIdOf(SELECT_LAST_CHANGED_ATTRIBUTE_ID);
   }
 
   /**
-   * Store device attribute
-   * @param data The device attribute data to be stored
+   * Get the largest row id of a table
+   * @param table The name of the table
+   * @return the largest row id or -1 if the table is empty
    */
-  void storeDeviceAttributes(String data) {
-    storeAttributes(data, Constants.ATTRIBUTE_TYPE_DEVICE);
+  private long getLastId(String table) {
+    return getLastIdOf("SELECT MAX(" + Constants.COLUMN_EVENTS_ID + ") FROM " + table);
   }
 
   /**
-   * Get Event Data
-   * @return returns a {@link JSONArray} representing the events data
+   * Runs a query for a single row id
+   * @param query The query selecting the id
+   * @return the id or -1 if there is none
    */
-  JSONArray getEventsData() {
-    synchronized (lock) {
+  private long getLastIdOf(String query) {
+    synchronized (readLock) {
+      Cursor dataset = null;
+      try {
+        SQLiteDatabase db = getReadableDatabase();
+        dataset = db.rawQuery(query, null);
+        if (dataset.moveToFirst() && !dataset.isNull(0)) {
+          return dataset.getLong(0);
+        }
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getLastId: " + query, e);
+      } finally {
+        if (null != dataset && !dataset.isClosed()) {
+          dataset.close();
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get a page of Event Data.
+   * Pages are read in the order of the event id, so the memory needed
+   * for an upload stays bounded however large the backlog is.
+   * Only the bounds of the page are read here, the events are written by {@link #writeEvents(EventPage, PayloadWriter)}
+   */
+  @Override
+  public EventPage getEventsPage(long afterEventId, long lastEventId, int limit, int maxBytes) {
+    synchronized (readLock) {
       Cursor dataset = null;
       try {
         SQLiteDatabase db = getReadableDatabase();
         dataset = db.query(
                 Constants.TABLE_NAME_EVENTS,
-                EVENT_COLUMNS,
-                null, null,
+                EVENT_SIZE_COLUMNS,
+                Constants.COLUMN_EVENTS_ID + ">? AND " + Constants.COLUMN_EVENTS_ID + "<=?",
+                new String[]{String.valueOf(afterEventId), String.valueOf(lastEventId)},
                 null,
                 null,
-                Constants.COLUMN_EVENTS_SESSION + " ASC");
+                Constants.COLUMN_EVENTS_ID + " ASC",
+                String.valueOf(limit));
 
-        if (dataset.getCount() > 0) {
-          long sessionId = -1;
-          JSONArray eventsArray = new JSONArray();
-          JSONArray sessionArray = new JSONArray();
-          JSONObject sessionObject = new JSONObject();
-          if (dataset.moveToFirst()) {
-            while (!dataset.isAfterLast()) {
-              long curSession = dataset.getLong(1);
-              if (sessionId == -1) {
-                sessionId = curSession;
-              }
-              if (curSession != sessionId) {
-                sessionObject.put(Constants.RequestAttributes.EVENT, eventsArray);
-                sessionObject.put(Constants.RequestAttributes.SESSION_START_TIME, sessionId);
-                sessionObject.put(Constants.RequestAttributes.SESSION_ID, String.valueOf(sessionId));
-                sessionArray.put(sessionObject);
-
-                sessionObject = new JSONObject();
-                eventsArray = new JSONArray();
-                sessionId = curSession;
-              }
-
-              JSONObject event = new JSONObject(dataset.getString(2));
-              eventsArray.put(event);
-              dataset.moveToNext();
-            }
-            sessionObject.put(Constants.RequestAttributes.SESSION_ID, String.valueOf(sessionId));
-            sessionObject.put(Constants.RequestAttributes.SESSION_START_TIME, sessionId);
-            sessionObject.put(Constants.RequestAttributes.EVENT, eventsArray);
-            sessionArray.put(sessionObject);
-          }
-          if (sessionArray.length() > 0) {
-            return sessionArray;
-          } else {
-            PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Session Data: nothing to send");
-            return null;
+        long pageLastEventId = afterEventId;
+        int eventCount = 0;
+        int bytes = 0;
+        while (dataset.moveToNext()) {
+          int size = dataset.getInt(1);
+          if (eventCount > 0 && bytes + size > maxBytes) {
+            break;
           }
+          bytes += size;
+          eventCount++;
+          pageLastEventId = dataset.getLong(0);
+        }
+        if (eventCount > 0) {
+          return new EventPage(afterEventId, pageLastEventId, eventCount, bytes);
         }
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Session Data: nothing to send");
       } catch (Throwable e) {
-        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getEventsData", e);
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getEventsPage", e);
       } finally {
         if (null != dataset && !dataset.isClosed()) {
           dataset.close();
         }
-        close();
       }
     }
     return null;
   }
 
   /**
-   * Get the User attributes to send
-   * @return a populated {@link JSONObject} or null
+   * Writes the events of a page as an array of sessions.
+   * Events are streamed from the cursor into the writer as they are stored,
+   * they are not parsed or held in memory
    */
-  JSONObject getUserAttributesIfAny() {
-    synchronized (lock) {
+  @Override
+  public void writeEvents(EventPage page, PayloadWriter writer) throws IOException {
+    synchronized (readLock) {
       Cursor dataset = null;
       try {
         SQLiteDatabase db = getReadableDatabase();
         dataset = db.query(
-                Constants.TABLE_NAME_PROPERTIES,
-                COLUMNS_ATTRIBUTES,
-                Constants.COLUMN_ATTRIBUTE_TYPE + "=?",
-                new String[]{String.valueOf(Constants.ATTRIBUTE_TYPE_USER)},
-                null, null, null);
-        int len = dataset.getCount();
-        if (dataset.getCount() > 0) {
-          StringBuilder builder = new StringBuilder();
-          builder.append("{");
-          while (dataset.moveToNext()) {
-            len--;
-            builder.append(dataset.getString(0));
-            if (len != 0) {
-              builder.append(",");
+                Constants.TABLE_NAME_EVENTS,
+                EVENT_COLUMNS,
+                Constants.COLUMN_EVENTS_ID + ">? AND " + Constants.COLUMN_EVENTS_ID + "<=?",
+                new String[]{String.valueOf(page.afterEventId), String.valueOf(page.lastEventId)},
+                null,
+                null,
+                Constants.COLUMN_EVENTS_SESSION + " ASC, " + Constants.COLUMN_EVENTS_ID + " ASC");
+
+        writer.beginArray();
+        long sessionId = -1;
+        boolean sessionOpen = false;
+        while (dataset.moveToNext()) {
+          long curSession = dataset.getLong(1);
+          if (!sessionOpen || curSession != sessionId) {
+            if (sessionOpen) {
+              writer.endSession();
+            }
+            sessionId = curSession;
+            sessionOpen = true;
+            writer.beginSession(sessionId);
+          }
+          if (dataset.isNull(3)) {
+            writer.rawValue(dataset.getString(2));
+          } else {
+            try {
+              EventCodec.decode(dataset.getBlob(3), writer);
+            } catch (IOException e) {
+              throw new CorruptEventException(dataset.getLong(0), e);
             }
           }
-          builder.append("}");
-          return new JSONObject(builder.toString());
         }
-      } catch (Throwable e) {
-        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getUserAttributesIfAny", e);
+        if (sessionOpen) {
+          writer.endSession();
+        }
+        writer.endArray();
       } finally {
         if (null != dataset && !dataset.isClosed()) {
           dataset.close();
         }
-        close();
       }
     }
-    return null;
   }
 
   /**
-   * Get the Device attributes to send
-   * @return a populated {@link JSONObject} or null
+   * Get the User attributes changed since the last acknowledged upload
+   * @param lastAttributeId Only attributes with an id less than or equal to this are returned
+   * @return the attributes as a JSON object or null
+   */
+  String getUserAttributesIfAny(long lastAttributeId) {
+    return getAttributesIfAny(Constants.ATTRIBUTE_TYPE_USER, lastAttributeId);
+  }
+
+  /**
+   * Get the Device attributes changed since the last acknowledged upload
+   * @param lastAttributeId Only attributes with an id less than or equal to this are returned
+   * @return the attributes as a JSON object or null
    */
-  JSONObject getDeviceAttributesIfAny() {
-    synchronized (lock) {
+  String getDeviceAttributesIfAny(long lastAttributeId) {
+    return getAttributesIfAny(Constants.ATTRIBUTE_TYPE_DEVICE, lastAttributeId);
+  }
+
+  /**
+   * Builds the JSON object of the attributes of a type changed since the last acknowledged upload.
+   * Every name is stored once and the values are already JSON, so nothing is parsed
+   * @param type            The type of attribute
+   * @param lastAttributeId Only attributes with an id less than or equal to this are returned
+   * @return the attributes as a JSON object or null
+   */
+  private String getAttributesIfAny(int type, long lastAttributeId) {
+    synchronized (readLock) {
       Cursor dataset = null;
       try {
         SQLiteDatabase db = getReadableDatabase();
-        dataset = db.query(
-                Constants.TABLE_NAME_PROPERTIES,
-                COLUMNS_ATTRIBUTES,
-                Constants.COLUMN_ATTRIBUTE_TYPE + "=?",
-                new String[]{String.valueOf(Constants.ATTRIBUTE_TYPE_DEVICE)}
-                , null, null, null);
-        int len = dataset.getCount();
+        dataset = db.rawQuery(SELECT_CHANGED_ATTRIBUTES,
+                new String[]{String.valueOf(type), String.valueOf(lastAttributeId)});
         if (dataset.getCount() > 0) {
           StringBuilder builder = new StringBuilder();
           builder.append("{");
           while (dataset.moveToNext()) {
-            len--;
-            builder.append(dataset.getString(0));
-            if (len != 0) {
+            if (builder.length() > 1) {
               builder.append(",");
             }
+            builder.append(JSONObject.quote(dataset.getString(0)))
+                    .append(":")
+                    .append(dataset.getString(1));
           }
           builder.append("}");
-          return new JSONObject(builder.toString());
+          return builder.toString();
         }
       } catch (Throwable e) {
-        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getDeviceAttributesIfAny", e);
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getAttributesIfAny: " + type, e);
       } finally {
         if (null != dataset && !dataset.isClosed()) {
           dataset.close();
         }
-        close();
       }
     }
     return null;
   }
 
+  @Override
+  public void deleteEvents(long afterEventId, long lastEventId) {
+    synchronized (writeLock) {
+      try {
+        SQLiteDatabase db = getWritableDatabase();
+        int count = db.delete(Constants.TABLE_NAME_EVENTS,
+                Constants.COLUMN_EVENTS_ID + ">? AND " + Constants.COLUMN_EVENTS_ID + "<=?",
+                new String[]{String.valueOf(afterEventId), String.valueOf(lastEventId)});
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Deleted event records: " + count);
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "deleteEvents", e);
+      }
+    }
+  }
+
   /**
-   * Deletes all information after it has been sent
+   * Acknowledges the attributes after they have been sent.
+   * The rows are kept, so that unchanged values are not sent again
+   * @param lastAttributeId Only attributes with an id less than or equal to this are acknowledged
    */
-  void clearData() {
-    synchronized (lock) {
+  void acknowledgeAttributes(long lastAttributeId) {
+    synchronized (writeLock) {
       try {
-        SQLiteDatabase db = getReadableDatabase();
-        db.delete(Constants.TABLE_NAME_EVENTS, null, null);
-        db.delete(Constants.TABLE_NAME_PROPERTIES, null, null);
+        SQLiteDatabase db = getWritableDatabase();
+        db.execSQL(ACKNOWLEDGE_ATTRIBUTES, new Object[]{lastAttributeId});
       } catch (Throwable e) {
-        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "clearData", e);
-      } finally {
-        close();
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "acknowledgeAttributes", e);
+      }
+    }
+  }
+
+  /**
+   * Deletes all the attributes of a type, sent or not
+   * @param type The type of attribute.
+   *             it can be of the following types:
+   *             {@link Constants#ATTRIBUTE_TYPE_DEVICE}
+   *             {@link Constants#ATTRIBUTE_TYPE_USER}
+   */
+  void deleteAttributes(int type) {
+    synchronized (writeLock) {
+      try {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(Constants.TABLE_NAME_PROPERTIES, Constants.COLUMN_ATTRIBUTE_TYPE + "=?",
+                new String[]{String.valueOf(type)});
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "deleteAttributes", e);
       }
     }
   }
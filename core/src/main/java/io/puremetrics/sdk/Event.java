@@ -0,0 +1,91 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An event which has been tracked but not yet written to the DB.
+ * Only the name, the timestamp and a shallow copy of the attributes are captured
+ * when the event is tracked, the record stored in the DB is built when the event is written.
+ */
+final class Event {
+  /**
+   * The session the event was tracked in
+   */
+  final long sessionId;
+  /**
+   * The name of the event
+   */
+  final String name;
+  /**
+   * The time the event was tracked at
+   */
+  final long timestamp;
+  /**
+   * A shallow copy of the event attributes, null if there are none
+   */
+  private final Map<?, ?> attributes;
+  /**
+   * The encoded event, null until {@link #toRecord()} is called
+   */
+  private byte[] record;
+
+  Event(long sessionId, String name, long timestamp, Map<?, ?> attributes) {
+    this.sessionId = sessionId;
+    this.name = name;
+    this.timestamp = timestamp;
+    this.attributes = null != attributes && attributes.size() > 0 ? new HashMap<Object, Object>(attributes) : null;
+  }
+
+  /**
+   * Encodes the event into the binary record stored in the DB, the result is cached
+   *
+   * @return the record, see {@link EventCodec}
+   * @throws JSONException if the event name is invalid or an attribute cannot be represented as JSON
+   */
+  byte[] toRecord() throws JSONException {
+    if (null == record) {
+      JSONObject data = new JSONObject();
+      data.put(Constants.RequestAttributes.EVENT_NAME, name);
+      data.put(Constants.RequestAttributes.TS, timestamp);
+      if (null != attributes) {
+        try {
+          data.put(Constants.RequestAttributes.EVENT_ATTRS, new JSONObject(attributes));
+        } catch (Throwable e) {
+          PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Event:toRecord", e);
+        }
+      }
+      record = EventCodec.encode(data);
+    }
+    return record;
+  }
+}
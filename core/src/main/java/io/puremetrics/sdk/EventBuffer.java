@@ -0,0 +1,225 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A write-behind buffer in front of {@link EventStore#storeEvents(Collection)}.
+ * Callers publish events into a preallocated lock-free {@link EventRing}, a single
+ * consumer on the storage lane of the {@link TaskManager} drains it and writes the
+ * events in a single transaction once the batch size is reached, once the flush delay
+ * elapses or when the app goes to background.
+ * The buffer is bounded, once it is full the {@link PureMetrics.OVERFLOW_POLICY} decides
+ * what happens to new events. Every written batch is counted by the {@link FlushPolicy}.
+ */
+final class EventBuffer {
+
+  /**
+   * Time a blocked caller parks before retrying
+   */
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  private final EventStore eventStore;
+  private final FlushPolicy flushPolicy;
+  private final EventRing<Event> ring;
+  private final int batchSize;
+  private final long flushDelay;
+  private final PureMetrics.OVERFLOW_POLICY overflowPolicy;
+  private final long blockTimeout;
+  /**
+   * Used to post the delayed flush, the flush itself always runs on the storage lane of the {@link TaskManager}
+   */
+  private final Handler handler;
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final AtomicLong spilledEvents = new AtomicLong();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final AtomicBoolean flushQueued = new AtomicBoolean();
+  /**
+   * Held while events are drained and stored, a spill on the calling thread
+   * cannot overtake a batch which is being written
+   */
+  private final Object drainLock = new Object();
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushNow();
+    }
+  };
+
+  private final Runnable delayedFlushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * Constructor
+   *
+   * @param eventStore       The {@link EventStore} the events are written to
+   * @param flushPolicy      The {@link FlushPolicy} counting the written events
+   * @param batchSize        Number of events after which the buffer is flushed
+   * @param flushDelay       Time in milliseconds after which a non empty buffer is flushed
+   * @param maxPendingEvents Maximum number of events held in memory, rounded up to a power of two
+   * @param overflowPolicy   The {@link PureMetrics.OVERFLOW_POLICY} applied when the buffer is full
+   * @param blockTimeout     Time in milliseconds a caller waits with {@link PureMetrics.OVERFLOW_POLICY#BLOCK}
+   */
+  EventBuffer(EventStore eventStore, FlushPolicy flushPolicy, int batchSize, long flushDelay, int maxPendingEvents,
+              PureMetrics.OVERFLOW_POLICY overflowPolicy, long blockTimeout) {
+    this.eventStore = eventStore;
+    this.flushPolicy = flushPolicy;
+    this.batchSize = batchSize;
+    this.flushDelay = flushDelay;
+    this.ring = new EventRing<>(Math.max(maxPendingEvents, batchSize));
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeout = blockTimeout;
+    this.handler = new Handler(Looper.getMainLooper());
+  }
+
+  /**
+   * Adds an event to the buffer. Does not take a lock unless a flush has to be triggered
+   *
+   * @param event The {@link Event} to be stored
+   */
+  void add(Event event) {
+    if (!ring.offer(event) && !handleOverflow(event)) {
+      return;
+    }
+    if (ring.size() >= batchSize) {
+      if (flushQueued.compareAndSet(false, true)) {
+        flush();
+      }
+    } else if (flushScheduled.compareAndSet(false, true)) {
+      handler.postDelayed(delayedFlushTask, flushDelay);
+    }
+  }
+
+  /**
+   * Applies the overflow policy to an event which did not fit in the ring
+   *
+   * @param event The {@link Event} which was rejected
+   * @return true if the event is now in the ring and a flush might be needed
+   */
+  private boolean handleOverflow(Event event) {
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        do {
+          if (null != ring.poll()) {
+            droppedEvents.incrementAndGet();
+          }
+        } while (!ring.offer(event));
+        return true;
+      case BLOCK:
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        do {
+          if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+            droppedEvents.incrementAndGet();
+            return false;
+          }
+          LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        } while (!ring.offer(event));
+        return true;
+      case SPILL_TO_DISK:
+        //the writer is not keeping up, write the events on the calling thread instead of holding them
+        ArrayList<Event> spill = new ArrayList<>(ring.capacity() + 1);
+        boolean stored;
+        synchronized (drainLock) {
+          ring.drainTo(spill);
+          spill.add(event);
+          spilledEvents.addAndGet(spill.size());
+          stored = eventStore.storeEvents(spill);
+        }
+        //a batch which was not stored would never be synced
+        if (stored) {
+          flushPolicy.onStored(spill, System.currentTimeMillis());
+        }
+        return false;
+      case DROP_NEWEST:
+      default:
+        droppedEvents.incrementAndGet();
+        return false;
+    }
+  }
+
+  /**
+   * Writes the buffered events to the DB on the storage lane of the {@link TaskManager}
+   *
+   * @return the {@link Future} of the flush, null if it could not be submitted
+   */
+  Future<?> flush() {
+    return TaskManager.getInstance().executeStorageTask(flushTask);
+  }
+
+  /**
+   * Writes the buffered events to the DB on the calling thread.
+   * Only called on the storage lane, so that a single writer drains the buffer and the events
+   * are stored in the order they were added.
+   */
+  void flushNow() {
+    //reset the flags before draining so that events added during the drain trigger a new flush
+    flushQueued.set(false);
+    if (flushScheduled.getAndSet(false)) {
+      handler.removeCallbacks(delayedFlushTask);
+    }
+    ArrayList<Event> batch = new ArrayList<>(Math.max(batchSize, ring.size()));
+    boolean stored;
+    synchronized (drainLock) {
+      if (ring.drainTo(batch) == 0) {
+        return;
+      }
+      stored = eventStore.storeEvents(batch);
+    }
+    if (stored) {
+      flushPolicy.onStored(batch, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full
+   */
+  long getDroppedEvents() {
+    return droppedEvents.get();
+  }
+
+  /**
+   * @return the number of events written on the calling thread because the buffer was full
+   */
+  long getSpilledEvents() {
+    return spilledEvents.get();
+  }
+}
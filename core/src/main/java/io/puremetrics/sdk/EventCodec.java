@@ -0,0 +1,419 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Converts events between JSON and the compact binary record stored in the DB.
+ * <p>
+ * A record is a format version byte followed by a tagged value. Integers and lengths are
+ * written as varints, strings and containers are length prefixed, and strings which are
+ * part of the {@link #DICTIONARY} are written as their index instead of their text, so
+ * the keys repeated in every event such as {@link Constants.RequestAttributes#TS} take a
+ * single byte. Member names are always strings and are written without a tag, as a varint
+ * holding the index shifted left with the low bit set, or the length shifted left
+ * followed by the UTF-8 bytes. Records are only converted back to JSON while an upload payload is written.
+ */
+final class EventCodec {
+
+  static final byte FORMAT_VERSION = 1;
+
+  /**
+   * Strings written by their index. The on-disk format depends on the order,
+   * new entries may only be appended
+   */
+  private static final String[] DICTIONARY = {
+          Constants.RequestAttributes.EVENT_NAME,
+          Constants.RequestAttributes.TS,
+          Constants.RequestAttributes.EVENT_ATTRS,
+          Constants.RequestAttributes.DI,
+          Constants.RequestAttributes.AI,
+          Constants.RequestAttributes.LI,
+          Constants.RequestAttributes.PL,
+          Constants.RequestAttributes.TZ,
+          Constants.RequestAttributes.SESSION,
+          Constants.RequestAttributes.SESSION_ID,
+          Constants.RequestAttributes.SESSION_START_TIME,
+          Constants.RequestAttributes.EVENT,
+          Constants.RequestAttributes.UA,
+          Constants.RequestAttributes.DA,
+          Constants.RequestAttributes.LANGUAGE,
+          Constants.RequestAttributes.APP_VERSION_NAME,
+          Constants.RequestAttributes.APP_VERSION_CODE,
+          Constants.RequestAttributes.CONNECTION_TYPE,
+          Constants.RequestAttributes.SDK_VERSION,
+          Constants.Events.ACQUISITION,
+          Constants.Events.EXISTING_USER_ACQ,
+          Constants.Events.CRASH,
+          Constants.Events.ATTRIBUTION,
+          Constants.Events.ONBOARDING,
+          Constants.Events.REFERRAL_DETAILS,
+          Constants.Events.Transaction.SUCCESSFUL,
+          Constants.Events.Transaction.STARTED,
+          Constants.Events.Transaction.FAILED,
+          Constants.Events.Transaction.CANCELLED,
+          Constants.Events.Attributes.AMOUNT,
+          Constants.Events.Attributes.PRODUCTS,
+          Constants.Events.Attributes.PRODUCT_ID,
+          Constants.Events.Attributes.DISCOUNTED_PRICE,
+          Constants.Events.Attributes.UNIT_PRICE,
+          Constants.Events.Attributes.UNIT_SOLD,
+          Constants.Events.Attributes.PAYMENT_MODE,
+          Constants.Events.Attributes.PAYMENTS,
+          Constants.Events.Attributes.FEES,
+          Constants.Events.Attributes.REVENUE_DISCOUNT_CODE,
+          Constants.Events.Attributes.REVENUE_DISCOUNT_VALUE,
+          Constants.Events.Attributes.META,
+          Constants.Events.Attributes.CURRENCY,
+          Constants.Events.Attributes.TRANSACTION_ID,
+          Constants.Events.Attributes.PG_TRANS_ID,
+          Constants.Events.Attributes.REASON,
+          Constants.Events.Attributes.TYPE,
+          Constants.Events.Attributes.CAMPAIGN,
+          Constants.Events.Attributes.SOURCE,
+          Constants.Events.Attributes.DEEPLINK,
+          Constants.Events.Attributes.VALUE,
+          Constants.Events.Attributes.CONTEXT,
+          Constants.Events.Attributes.VERSION_NUMBER
+  };
+  private static final HashMap<String, Integer> DICTIONARY_IDS = new HashMap<>();
+
+  static {
+    for (int i = 0; i < DICTIONARY.length; i++) {
+      //the first index of a repeated string is used
+      if (!DICTIONARY_IDS.containsKey(DICTIONARY[i])) {
+        DICTIONARY_IDS.put(DICTIONARY[i], i);
+      }
+    }
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /**
+   * Maximum nesting of objects and arrays in a record
+   */
+  private static final int MAX_NESTING = 16;
+
+  private static final int TAG_NULL = 0;
+  private static final int TAG_FALSE = 1;
+  private static final int TAG_TRUE = 2;
+  /**
+   * Zigzag encoded varint
+   */
+  private static final int TAG_INTEGER = 3;
+  private static final int TAG_DOUBLE = 4;
+  private static final int TAG_FLOAT = 5;
+  /**
+   * A number which is neither an integer nor a floating point primitive, stored as its JSON text
+   */
+  private static final int TAG_NUMBER_TEXT = 6;
+  /**
+   * Varint length followed by the UTF-8 bytes
+   */
+  private static final int TAG_STRING = 7;
+  /**
+   * Varint index into the {@link #DICTIONARY}
+   */
+  private static final int TAG_STRING_REF = 8;
+  /**
+   * Varint member count followed by the untagged name and the value of every member
+   */
+  private static final int TAG_OBJECT = 9;
+  /**
+   * Varint element count followed by every element
+   */
+  private static final int TAG_ARRAY = 10;
+
+  private EventCodec() {
+  }
+
+  /**
+   * Encodes an event
+   *
+   * @param event The event as JSON
+   * @return the binary record
+   * @throws JSONException if the event holds a value which cannot be represented as JSON
+   */
+  static byte[] encode(JSONObject event) throws JSONException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+    out.write(FORMAT_VERSION);
+    writeValue(out, event, 0);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a record as JSON
+   *
+   * @param record The binary record
+   * @param writer The {@link PayloadWriter} the JSON is written to
+   * @throws IOException if the record is corrupt or could not be written
+   */
+  static void decode(byte[] record, PayloadWriter writer) throws IOException {
+    if (record.length == 0 || record[0] != FORMAT_VERSION) {
+      throw new IOException("Unknown event record format");
+    }
+    Reader reader = new Reader(record);
+    reader.position = 1;
+    readValue(reader, writer, 0);
+    if (reader.position != record.length) {
+      throw new IOException("Trailing bytes in event record");
+    }
+  }
+
+  private static void writeValue(ByteArrayOutputStream out, Object value, int depth) throws JSONException {
+    if (null == value || JSONObject.NULL.equals(value)) {
+      out.write(TAG_NULL);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Integer || value instanceof Long
+            || value instanceof Short || value instanceof Byte) {
+      out.write(TAG_INTEGER);
+      long number = ((Number) value).longValue();
+      writeVarint(out, (number << 1) ^ (number >> 63));
+    } else if (value instanceof Double) {
+      //validates the value, NaN and infinity are not valid JSON
+      JSONObject.numberToString((Number) value);
+      out.write(TAG_DOUBLE);
+      writeFixed(out, Double.doubleToLongBits((Double) value), 8);
+    } else if (value instanceof Float) {
+      JSONObject.numberToString((Number) value);
+      out.write(TAG_FLOAT);
+      writeFixed(out, Float.floatToIntBits((Float) value), 4);
+    } else if (value instanceof Number) {
+      out.write(TAG_NUMBER_TEXT);
+      writeString(out, JSONObject.numberToString((Number) value));
+    } else if (value instanceof JSONObject) {
+      checkDepth(depth);
+      JSONObject object = (JSONObject) value;
+      out.write(TAG_OBJECT);
+      writeVarint(out, object.length());
+      Iterator<String> names = object.keys();
+      while (names.hasNext()) {
+        String name = names.next();
+        writeName(out, name);
+        writeValue(out, object.opt(name), depth + 1);
+      }
+    } else if (value instanceof JSONArray) {
+      checkDepth(depth);
+      JSONArray array = (JSONArray) value;
+      out.write(TAG_ARRAY);
+      writeVarint(out, array.length());
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(out, array.opt(i), depth + 1);
+      }
+    } else {
+      writeText(out, value.toString());
+    }
+  }
+
+  private static void checkDepth(int depth) throws JSONException {
+    if (depth >= MAX_NESTING) {
+      throw new JSONException("Event nested deeper than " + MAX_NESTING);
+    }
+  }
+
+  /**
+   * Writes a string as a dictionary reference if possible
+   */
+  private static void writeText(ByteArrayOutputStream out, String text) {
+    Integer id = DICTIONARY_IDS.get(text);
+    if (null != id) {
+      out.write(TAG_STRING_REF);
+      writeVarint(out, id);
+    } else {
+      out.write(TAG_STRING);
+      writeString(out, text);
+    }
+  }
+
+  private static void writeName(ByteArrayOutputStream out, String name) {
+    Integer id = DICTIONARY_IDS.get(name);
+    if (null != id) {
+      writeVarint(out, ((long) id << 1) | 1);
+    } else {
+      byte[] bytes = name.getBytes(UTF_8);
+      writeVarint(out, (long) bytes.length << 1);
+      out.write(bytes, 0, bytes.length);
+    }
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String text) {
+    byte[] bytes = text.getBytes(UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeFixed(ByteArrayOutputStream out, long value, int bytes) {
+    for (int i = bytes - 1; i >= 0; i--) {
+      out.write((int) (value >>> (i * 8)));
+    }
+  }
+
+  private static void readValue(Reader reader, PayloadWriter writer, int depth) throws IOException {
+    int tag = reader.readByte();
+    switch (tag) {
+      case TAG_NULL:
+        writer.nullValue();
+        break;
+      case TAG_FALSE:
+        writer.value(false);
+        break;
+      case TAG_TRUE:
+        writer.value(true);
+        break;
+      case TAG_INTEGER:
+        long number = reader.readVarint();
+        writer.value((number >>> 1) ^ -(number & 1));
+        break;
+      case TAG_DOUBLE:
+        writer.value((Number) Double.longBitsToDouble(reader.readFixed(8)));
+        break;
+      case TAG_FLOAT:
+        writer.value((Number) Float.intBitsToFloat((int) reader.readFixed(4)));
+        break;
+      case TAG_NUMBER_TEXT:
+        writer.rawValue(reader.readString());
+        break;
+      case TAG_STRING:
+        writer.value(reader.readString());
+        break;
+      case TAG_STRING_REF:
+        writer.value(reader.readReference());
+        break;
+      case TAG_OBJECT:
+        checkDepth(depth, reader);
+        writer.beginObject();
+        for (long members = reader.readVarint(); members > 0; members--) {
+          writer.name(reader.readName());
+          readValue(reader, writer, depth + 1);
+        }
+        writer.endObject();
+        break;
+      case TAG_ARRAY:
+        checkDepth(depth, reader);
+        writer.beginArray();
+        for (long elements = reader.readVarint(); elements > 0; elements--) {
+          readValue(reader, writer, depth + 1);
+        }
+        writer.endArray();
+        break;
+      default:
+        throw new IOException("Invalid value tag " + tag);
+    }
+  }
+
+  private static void checkDepth(int depth, Reader reader) throws IOException {
+    if (depth >= MAX_NESTING) {
+      throw new IOException("Event record nested deeper than " + MAX_NESTING
+              + " at " + reader.position);
+    }
+  }
+
+  /**
+   * Reads the primitives of a record
+   */
+  private static final class Reader {
+    private final byte[] data;
+    private int position;
+
+    Reader(byte[] data) {
+      this.data = data;
+    }
+
+    int readByte() throws IOException {
+      if (position >= data.length) {
+        throw new IOException("Truncated event record");
+      }
+      return data[position++] & 0xFF;
+    }
+
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in event record");
+    }
+
+    long readFixed(int bytes) throws IOException {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | readByte();
+      }
+      return value;
+    }
+
+    String readString() throws IOException {
+      return readString(readVarint());
+    }
+
+    String readName() throws IOException {
+      long name = readVarint();
+      return (name & 1) != 0 ? reference(name >>> 1) : readString(name >>> 1);
+    }
+
+    private String readString(long length) throws IOException {
+      if (length < 0 || length > data.length - position) {
+        throw new IOException("Truncated event record");
+      }
+      String text = new String(data, position, (int) length, UTF_8);
+      position += (int) length;
+      return text;
+    }
+
+    String readReference() throws IOException {
+      return reference(readVarint());
+    }
+
+    private String reference(long id) throws IOException {
+      if (id < 0 || id >= DICTIONARY.length) {
+        throw new IOException("Unknown dictionary id " + id);
+      }
+      return DICTIONARY[(int) id];
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue backed by a preallocated ring of slots.
+ * Every slot carries a sequence number which tells producers and consumers whether it is
+ * free or filled for the current lap, so offering and polling is one CAS on the shared
+ * position and never takes a lock or allocates.
+ * Any number of threads may offer, polling is safe from several threads as well,
+ * which lets producers evict the oldest element when the ring is full.
+ */
+final class EventRing<E> {
+
+  private final int mask;
+  private final AtomicReferenceArray<E> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Constructor
+   *
+   * @param capacity Minimum number of elements held, rounded up to a power of two
+   */
+  EventRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    mask = size - 1;
+    slots = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds an element at the tail of the ring
+   *
+   * @param element The element to be added, cannot be null
+   * @return true if the element was added, false if the ring is full
+   */
+  boolean offer(E element) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long sequence = sequences.get(index);
+      long difference = sequence - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots.lazySet(index, element);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the element at the head of the ring
+   *
+   * @return the oldest element or null if the ring is empty
+   */
+  E poll() {
+    long position = head.get();
+    while (true) {
+      int index = (int) position & mask;
+      long sequence = sequences.get(index);
+      long difference = sequence - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          E element = slots.get(index);
+          slots.lazySet(index, null);
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Removes all available elements and adds them to the collection in FIFO order
+   *
+   * @param target The collection the elements are added to
+   * @return number of elements drained
+   */
+  int drainTo(Collection<? super E> target) {
+    int count = 0;
+    E element;
+    while (null != (element = poll())) {
+      target.add(element);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return approximate number of elements in the ring
+   */
+  int size() {
+    long size = tail.get() - head.get();
+    return size < 0 ? 0 : (int) Math.min(size, mask + 1);
+  }
+
+  /**
+   * @return number of elements the ring can hold
+   */
+  int capacity() {
+    return mask + 1;
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Storage for the events which have been tracked but not yet uploaded.
+ * Events are only ever appended and are drained in the order of their ids, an upload reads
+ * the events in bounded pages and deletes every page once it has been acknowledged.
+ * See {@link PureMetrics.STORAGE_ENGINE} for the available implementations
+ */
+interface EventStore {
+
+  /**
+   * Stores a batch of events
+   * @param events The {@link Event}s to be stored
+   * @return true if the batch was stored, events which cannot be encoded are skipped
+   */
+  boolean storeEvents(Collection<Event> events);
+
+  /**
+   * Get the id of the last stored event.
+   * Used as the upper bound of the snapshot which is uploaded,
+   * events stored while the upload is in progress are not part of it
+   * @return the largest event id or -1 if there are no events
+   */
+  long getLastEventId();
+
+  /**
+   * Get a page of events to be uploaded
+   * @param afterEventId Only events with an id greater than this are returned
+   * @param lastEventId  Only events with an id less than or equal to this are returned
+   * @param limit        Maximum number of events in the page
+   * @param maxBytes     Maximum estimated size of the events as JSON,
+   *                     a page always has at least one event
+   * @return returns an {@link EventPage} or null if there is nothing to send
+   */
+  EventPage getEventsPage(long afterEventId, long lastEventId, int limit, int maxBytes);
+
+  /**
+   * Writes the events of a page as an array of sessions
+   * @param page   The {@link EventPage} to be written
+   * @param writer The {@link PayloadWriter} of the request
+   * @throws CorruptEventException if a stored event record cannot be decoded,
+   *                               the writer is left incomplete
+   * @throws IOException           if the events could not be written
+   */
+  void writeEvents(EventPage page, PayloadWriter writer) throws IOException;
+
+  /**
+   * Deletes the events of an uploaded page after it has been acknowledged
+   * @param afterEventId Only events with an id greater than this are deleted
+   * @param lastEventId  Only events with an id less than or equal to this are deleted
+   */
+  void deleteEvents(long afterEventId, long lastEventId);
+
+  /**
+   * Releases the resources held by the store, the next operation transparently reacquires them
+   */
+  void release();
+
+  /**
+   * A bounded page of events read for upload.
+   * The page covers the event id range ({@link #afterEventId}, {@link #lastEventId}]
+   */
+  final class EventPage {
+    /**
+     * Id after which the page starts, exclusive
+     */
+    final long afterEventId;
+    /**
+     * Id of the last event in the page
+     */
+    final long lastEventId;
+    /**
+     * Number of events in the page
+     */
+    final int eventCount;
+    /**
+     * Estimated size of the events in the page as JSON
+     */
+    final int size;
+
+    EventPage(long afterEventId, long lastEventId, int eventCount, int size) {
+      this.afterEventId = afterEventId;
+      this.lastEventId = lastEventId;
+      this.eventCount = eventCount;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Thrown when a stored event record cannot be decoded.
+   * The record can never be sent, it is dropped instead of blocking the events stored after it
+   */
+  final class CorruptEventException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Id of the corrupt event
+     */
+    final long eventId;
+
+    CorruptEventException(long eventId, IOException cause) {
+      super("Corrupt event record " + eventId + ": " + cause.getMessage(), cause);
+      this.eventId = eventId;
+    }
+  }
+}
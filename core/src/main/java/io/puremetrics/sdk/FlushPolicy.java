@@ -0,0 +1,239 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONException;
+
+import java.util.Collection;
+
+/**
+ * Triggers a sync during long foreground sessions, once the events stored since the last
+ * sync cross a count, a byte size or an age threshold. A threshold of 0 is disabled.
+ * <p>
+ * The counters are kept in memory and updated with every batch written by the {@link EventBuffer},
+ * a sync which is accepted by the server subtracts what it carried. Events left over from an earlier
+ * launch are not counted, they go with the next sync. A crossed threshold triggers once. If the sync
+ * does not upload, because it was skipped or failed, the trigger is held until the next attempt time
+ * of the {@link UploadScheduler}, so the events stored while offline do not start a sync each.
+ */
+final class FlushPolicy {
+
+  /**
+   * Receives the decisions of the {@link FlushPolicy}
+   */
+  interface Listener {
+    /**
+     * A threshold was crossed, the pending data should be synced
+     */
+    void onFlushDue();
+
+    /**
+     * The oldest pending event crosses the age threshold or a held trigger is released after the delay,
+     * {@link FlushPolicy#check(long)} should be called then
+     *
+     * @param delay Time in milliseconds
+     */
+    void scheduleAgeCheck(long delay);
+  }
+
+  /**
+   * What was pending when a sync started
+   */
+  static final class Mark {
+    final long time;
+    final long events;
+    final long bytes;
+
+    Mark(long time, long events, long bytes) {
+      this.time = time;
+      this.events = events;
+      this.bytes = bytes;
+    }
+  }
+
+  private final int maxEvents;
+  private final long maxBytes;
+  private final long maxAge;
+  private final Listener listener;
+
+  private long pendingEvents;
+  private long pendingBytes;
+  /**
+   * Time of the oldest pending event, 0 if nothing is pending
+   */
+  private long oldestEventTime;
+  private boolean triggered;
+  /**
+   * Time at which the trigger of a sync which did not upload is released, 0 if it is not held
+   */
+  private long rearmTime;
+
+  /**
+   * Constructor
+   *
+   * @param maxEvents Number of pending events which triggers a sync
+   * @param maxBytes  Size in bytes of the pending events which triggers a sync
+   * @param maxAge    Age in milliseconds of the oldest pending event which triggers a sync
+   * @param listener  The {@link Listener} to be notified
+   */
+  FlushPolicy(int maxEvents, long maxBytes, long maxAge, Listener listener) {
+    this.maxEvents = maxEvents;
+    this.maxBytes = maxBytes;
+    this.maxAge = maxAge;
+    this.listener = listener;
+  }
+
+  /**
+   * Counts a batch of events written to the {@link EventStore}, a batch which failed to be stored is not counted
+   *
+   * @param events The {@link Event}s which were stored, they are already encoded
+   * @param now    The current time
+   */
+  void onStored(Collection<Event> events, long now) {
+    long scheduleDelay = -1;
+    synchronized (this) {
+      for (Event event : events) {
+        try {
+          pendingBytes += event.toRecord().length;
+        } catch (JSONException e) {
+          //not stored
+          continue;
+        }
+        pendingEvents++;
+        if (0 == oldestEventTime || event.timestamp < oldestEventTime) {
+          if (0 == oldestEventTime && maxAge > 0) {
+            scheduleDelay = Math.max(0, event.timestamp + maxAge - now);
+          }
+          oldestEventTime = event.timestamp;
+        }
+      }
+    }
+    if (!check(now) && scheduleDelay >= 0) {
+      listener.scheduleAgeCheck(scheduleDelay);
+    }
+  }
+
+  /**
+   * Triggers a sync if a threshold is crossed
+   *
+   * @param now The current time
+   * @return true if a sync was triggered
+   */
+  boolean check(long now) {
+    synchronized (this) {
+      if (0 == pendingEvents || !isCrossed(now)) {
+        return false;
+      }
+      if (triggered && (0 == rearmTime || now < rearmTime)) {
+        return false;
+      }
+      triggered = true;
+      rearmTime = 0;
+    }
+    listener.onFlushDue();
+    return true;
+  }
+
+  private boolean isCrossed(long now) {
+    return (maxEvents > 0 && pendingEvents >= maxEvents)
+            || (maxBytes > 0 && pendingBytes >= maxBytes)
+            || (maxAge > 0 && now - oldestEventTime >= maxAge);
+  }
+
+  /**
+   * Called when a sync starts, after the buffered events were written
+   *
+   * @param now The current time
+   * @return the {@link Mark} to be passed to {@link #onSynced(Mark, long)}
+   */
+  synchronized Mark mark(long now) {
+    return new Mark(now, pendingEvents, pendingBytes);
+  }
+
+  /**
+   * Called when everything pending at the {@link Mark} was uploaded or dropped
+   *
+   * @param mark The {@link Mark} taken when the sync started
+   * @param now  The current time
+   */
+  void onSynced(Mark mark, long now) {
+    long scheduleDelay = -1;
+    synchronized (this) {
+      pendingEvents = Math.max(0, pendingEvents - mark.events);
+      pendingBytes = Math.max(0, pendingBytes - mark.bytes);
+      triggered = false;
+      rearmTime = 0;
+      if (0 == pendingEvents) {
+        pendingBytes = 0;
+        oldestEventTime = 0;
+      } else {
+        //the events stored during the sync are not older than its start
+        oldestEventTime = Math.max(oldestEventTime, mark.time);
+        if (maxAge > 0) {
+          scheduleDelay = Math.max(0, oldestEventTime + maxAge - now);
+        }
+      }
+    }
+    if (scheduleDelay >= 0) {
+      listener.scheduleAgeCheck(scheduleDelay);
+    }
+  }
+
+  /**
+   * Called when a run of syncs ends. A trigger which is still set belongs to a sync which did not
+   * upload, it is held until the next attempt time, and at least the age threshold
+   * or {@link Constants#FLUSH_REARM_DELAY}, then the pending events can trigger a sync again
+   *
+   * @param now             The current time
+   * @param nextAttemptTime The time of the next upload attempt, 0 if an upload may be attempted any time
+   */
+  void onSyncEnded(long now, long nextAttemptTime) {
+    long delay;
+    synchronized (this) {
+      if (!triggered) {
+        return;
+      }
+      delay = Math.max(Math.max(Constants.FLUSH_REARM_DELAY, maxAge), nextAttemptTime - now);
+      rearmTime = now + delay;
+    }
+    listener.scheduleAgeCheck(delay);
+  }
+
+  /**
+   * @return the number of events stored since the last sync
+   */
+  synchronized long getPendingEvents() {
+    return pendingEvents;
+  }
+
+  /**
+   * @return the size in bytes of the events stored since the last sync
+   */
+  synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+}
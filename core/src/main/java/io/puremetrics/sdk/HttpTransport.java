@@ -0,0 +1,105 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link Transport} sending one payload at a time on the calling thread with an {@link UploadClient}
+ */
+class HttpTransport implements Transport {
+
+  private final UploadClient client;
+  private final String authBytes;
+  private final boolean isDebug;
+  private final boolean gzip;
+  private final int compressionLevel;
+
+  /**
+   * Constructor
+   *
+   * @param client           The {@link UploadClient} the requests are sent with
+   * @param authBytes        Authorization bytes for Http BASIC Auth
+   * @param isDebug          true if this is a debug build
+   * @param gzip             true if the request body should be gzip compressed
+   * @param compressionLevel The compression level, 1-9 or -1 for the default level
+   */
+  HttpTransport(UploadClient client, String authBytes, boolean isDebug, boolean gzip, int compressionLevel) {
+    this.client = client;
+    this.authBytes = authBytes;
+    this.isDebug = isDebug;
+    this.gzip = gzip;
+    this.compressionLevel = compressionLevel;
+  }
+
+  @Override
+  public Future<Integer> send(Payload payload) {
+    FutureTask<Integer> upload = newUpload(payload);
+    upload.run();
+    return upload;
+  }
+
+  @Override
+  public int getMaxInFlight() {
+    return 1;
+  }
+
+  /**
+   * Creates the task uploading a payload, it is run by the caller
+   *
+   * @param payload The serialized request body
+   * @return the {@link FutureTask} of the upload
+   */
+  FutureTask<Integer> newUpload(final Payload payload) {
+    return new FutureTask<>(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return upload(payload);
+      }
+    });
+  }
+
+  /**
+   * Uploads the data to PureMetrics
+   *
+   * @param payload The serialized request body
+   * @return the HTTP status of the response or {@link #NO_RESPONSE}
+   */
+  private int upload(Payload payload) {
+    try {
+      if (PureMetrics.isLoggable(PureMetrics.LOG_LEVEL.DEBUG)) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "RequestBody: " + payload + " | Checksum: " + payload.checksum + " | " + authBytes);
+      }
+      return client.upload(authBytes, payload, isDebug, gzip, compressionLevel);
+    } catch (Throwable e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "Failed to upload data", e);
+    }
+    return NO_RESPONSE;
+  }
+}
@@ -0,0 +1,600 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link EventStore} backed by append-only log segments which are memory mapped.
+ * <p>
+ * Every segment is a file of a fixed size starting with a header, followed by entries.
+ * An entry is its length, a CRC32 of its content, the session id and the
+ * {@link EventCodec} record of the event. A batch of entries only becomes visible once the
+ * commit marker following it is written, and the marker is always written last. When the
+ * log is opened, entries after the last valid commit marker, or entries whose CRC does not
+ * match, are discarded so that a crash in the middle of a batch never exposes part of it.
+ * <p>
+ * Event ids are consecutive, the id of an entry is the base id of its segment plus its index.
+ * Uploads drain the log from its head, acknowledged events are recorded in the header of the
+ * head segment and a segment file is deleted once all of its events are acknowledged.
+ * The mapped pages are written back by the OS, they are forced to the disk when a segment is
+ * full and when the log is released.
+ */
+final class MappedEventLog implements EventStore {
+
+  private static final int MAGIC = 0x504D4C47;
+  private static final int FORMAT_VERSION = 1;
+  /**
+   * Header: magic, format version, base id, number of acknowledged events, reserved
+   */
+  private static final int HEADER_SIZE = 24;
+  private static final int OFFSET_VERSION = 4;
+  private static final int OFFSET_BASE_ID = 8;
+  private static final int OFFSET_ACKED = 16;
+  /**
+   * Entry header: record length, CRC32 of session id and record, session id
+   */
+  private static final int ENTRY_HEADER_SIZE = 16;
+  /**
+   * A commit marker is this value followed by the number of committed entries in the segment
+   */
+  private static final int COMMIT = -1;
+  private static final int COMMIT_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final File directory;
+  private final int segmentSize;
+  private final Object lock = new Object();
+  /**
+   * Open segments ordered by their base id, the last one is appended to
+   */
+  private final ArrayList<Segment> segments = new ArrayList<>();
+  private boolean opened = false;
+  private long nextId = 1;
+  /**
+   * Id of the last acknowledged event
+   */
+  private long ackedId = 0;
+
+  /**
+   * Constructor
+   *
+   * @param directory   The directory the segments are stored in
+   * @param segmentSize Size of a segment file in bytes
+   */
+  MappedEventLog(File directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  @Override
+  public boolean storeEvents(Collection<Event> events) {
+    synchronized (lock) {
+      try {
+        open();
+        Segment tail = segments.isEmpty() ? createSegment(nextId) : segments.get(segments.size() - 1);
+        int position = tail.end;
+        int pending = 0;
+        int stored = 0;
+        for (Event event : events) {
+          byte[] record;
+          try {
+            record = event.toRecord();
+          } catch (Throwable e) {
+            PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Skipping event " + event.name, e);
+            continue;
+          }
+          int entrySize = ENTRY_HEADER_SIZE + record.length;
+          if (position + entrySize + COMMIT_SIZE > tail.capacity()) {
+            if (HEADER_SIZE + entrySize + COMMIT_SIZE > segmentSize) {
+              PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Skipping event larger than a log segment: "
+                      + event.name);
+              continue;
+            }
+            if (pending > 0) {
+              commit(tail, position, pending);
+              pending = 0;
+            }
+            tail.buffer.force();
+            tail = createSegment(nextId);
+            position = tail.end;
+          }
+          writeEntry(tail, position, event.sessionId, record);
+          position += entrySize;
+          pending++;
+          stored++;
+        }
+        if (pending > 0) {
+          commit(tail, position, pending);
+        }
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Stored event records: " + stored);
+        return true;
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "While appending events", e);
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public long getLastEventId() {
+    synchronized (lock) {
+      try {
+        open();
+        return nextId - 1 > ackedId ? nextId - 1 : -1;
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "getLastEventId", e);
+      }
+      return -1;
+    }
+  }
+
+  @Override
+  public EventPage getEventsPage(long afterEventId, long lastEventId, int limit, int maxBytes) {
+    synchronized (lock) {
+      try {
+        open();
+        Position position = seek(Math.max(afterEventId, ackedId) + 1);
+        long pageLastEventId = afterEventId;
+        int eventCount = 0;
+        int bytes = 0;
+        while (null != position && position.id <= lastEventId && eventCount < limit) {
+          int size = position.segment.buffer.getInt(position.offset) * Constants.EVENT_RECORD_EXPANSION;
+          if (eventCount > 0 && bytes + size > maxBytes) {
+            break;
+          }
+          bytes += size;
+          eventCount++;
+          pageLastEventId = position.id;
+          position = next(position);
+        }
+        if (eventCount > 0) {
+          return new EventPage(afterEventId, pageLastEventId, eventCount, bytes);
+        }
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Session Data: nothing to send");
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "getEventsPage", e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes the events of a page as an array of sessions.
+   * The records are copied out of the log while holding the lock and are decoded
+   * after it is released, so appends are not blocked while the payload is written
+   */
+  @Override
+  public void writeEvents(EventPage page, PayloadWriter writer) throws IOException {
+    final long[] sessionIds = new long[page.eventCount];
+    long[] ids = new long[page.eventCount];
+    byte[][] records = new byte[page.eventCount][];
+    int count = 0;
+    synchronized (lock) {
+      open();
+      Position position = seek(Math.max(page.afterEventId, ackedId) + 1);
+      while (null != position && position.id <= page.lastEventId && count < records.length) {
+        MappedByteBuffer buffer = position.segment.buffer;
+        int length = buffer.getInt(position.offset);
+        ids[count] = position.id;
+        sessionIds[count] = buffer.getLong(position.offset + 8);
+        records[count] = read(buffer, position.offset + ENTRY_HEADER_SIZE, length);
+        count++;
+        position = next(position);
+      }
+    }
+    //events are grouped by session in the order they were stored, the sort is stable
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        long left = sessionIds[lhs];
+        long right = sessionIds[rhs];
+        return left < right ? -1 : (left == right ? 0 : 1);
+      }
+    });
+    writer.beginArray();
+    for (int i = 0; i < count; i++) {
+      long sessionId = sessionIds[order[i]];
+      if (i == 0 || sessionId != sessionIds[order[i - 1]]) {
+        if (i > 0) {
+          writer.endSession();
+        }
+        writer.beginSession(sessionId);
+      }
+      try {
+        EventCodec.decode(records[order[i]], writer);
+      } catch (IOException e) {
+        throw new CorruptEventException(ids[order[i]], e);
+      }
+    }
+    if (count > 0) {
+      writer.endSession();
+    }
+    writer.endArray();
+  }
+
+  /**
+   * Acknowledges the events up to lastEventId. The log is only ever drained from its head,
+   * so everything before afterEventId is expected to be acknowledged already
+   */
+  @Override
+  public void deleteEvents(long afterEventId, long lastEventId) {
+    synchronized (lock) {
+      try {
+        open();
+        if (lastEventId <= ackedId) {
+          return;
+        }
+        ackedId = Math.min(lastEventId, nextId - 1);
+        trimHead();
+        PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Acknowledged event records up to: " + ackedId);
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "deleteEvents", e);
+      }
+    }
+  }
+
+  @Override
+  public void release() {
+    synchronized (lock) {
+      for (Segment segment : segments) {
+        segment.close(true);
+      }
+      segments.clear();
+      opened = false;
+      PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Closed event log");
+    }
+  }
+
+  /**
+   * Opens the segments of the log and recovers them if needed. Has to be called holding the lock
+   */
+  private void open() throws IOException {
+    if (opened) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    //the names are zero padded base ids, so they sort by base id
+    Arrays.sort(names);
+    segments.clear();
+    for (String name : names) {
+      File file = new File(directory, name);
+      Segment segment = Segment.open(file);
+      if (null == segment || (!segments.isEmpty() && segment.baseId != nextId)) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.WARN, "Discarding invalid event log segment " + name);
+        if (null != segment) {
+          segment.close(false);
+        }
+        if (!file.delete()) {
+          throw new IOException("Cannot delete " + file);
+        }
+        continue;
+      }
+      if (segments.isEmpty()) {
+        ackedId = segment.baseId + segment.acked - 1;
+      }
+      segments.add(segment);
+      nextId = segment.baseId + segment.count;
+    }
+    opened = true;
+    trimHead();
+  }
+
+  /**
+   * Creates a segment and makes it the tail of the log
+   */
+  private Segment createSegment(long baseId) throws IOException {
+    File file = new File(directory, String.format(Locale.US, "%019d%s", baseId, SEGMENT_SUFFIX));
+    Segment segment = Segment.create(file, baseId, segmentSize);
+    segments.add(segment);
+    trimHead();
+    return segment;
+  }
+
+  /**
+   * Deletes the fully acknowledged segments at the head of the log and records the
+   * acknowledged events of the new head. The tail is kept so that ids keep increasing
+   */
+  private void trimHead() {
+    while (segments.size() > 1 && segments.get(0).lastId() <= ackedId) {
+      Segment head = segments.remove(0);
+      head.close(false);
+      if (!head.file.delete()) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.WARN, "Cannot delete event log segment " + head.file);
+      }
+    }
+    if (!segments.isEmpty()) {
+      Segment head = segments.get(0);
+      int acked = (int) Math.max(0, Math.min(ackedId - head.baseId + 1, head.count));
+      if (acked != head.acked) {
+        head.acked = acked;
+        head.buffer.putInt(OFFSET_ACKED, acked);
+      }
+    }
+  }
+
+  /**
+   * Writes an entry, the length is written last
+   */
+  private static void writeEntry(Segment segment, int offset, long sessionId, byte[] record) {
+    MappedByteBuffer buffer = segment.buffer;
+    buffer.putLong(offset + 8, sessionId);
+    buffer.position(offset + ENTRY_HEADER_SIZE);
+    buffer.put(record);
+    buffer.putInt(offset + 4, crc(sessionId, record));
+    buffer.putInt(offset, record.length);
+  }
+
+  /**
+   * Writes the commit marker of the entries before offset, the marker value is written last
+   */
+  private void commit(Segment segment, int offset, int entries) {
+    segment.buffer.putInt(offset + 4, segment.count + entries);
+    segment.buffer.putInt(offset, COMMIT);
+    segment.count += entries;
+    segment.end = offset + COMMIT_SIZE;
+    nextId += entries;
+  }
+
+  /**
+   * Finds an entry. Has to be called holding the lock
+   *
+   * @param id The id of the event
+   * @return the {@link Position} of the entry or null if there is no such event
+   */
+  private Position seek(long id) {
+    for (Segment segment : segments) {
+      if (id >= segment.baseId && id <= segment.lastId()) {
+        Position position = new Position(segment, HEADER_SIZE, segment.baseId);
+        skipMarkers(position);
+        while (position.id < id) {
+          position.offset += ENTRY_HEADER_SIZE + segment.buffer.getInt(position.offset);
+          position.id++;
+          skipMarkers(position);
+        }
+        return position;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Moves to the entry after a position. Has to be called holding the lock
+   *
+   * @return the moved {@link Position} or null if it was the last entry
+   */
+  private Position next(Position position) {
+    Segment segment = position.segment;
+    if (position.id < segment.lastId()) {
+      position.offset += ENTRY_HEADER_SIZE + segment.buffer.getInt(position.offset);
+      position.id++;
+      skipMarkers(position);
+      return position;
+    }
+    int index = segments.indexOf(segment) + 1;
+    while (index < segments.size()) {
+      Segment following = segments.get(index++);
+      if (following.count > 0) {
+        Position first = new Position(following, HEADER_SIZE, following.baseId);
+        skipMarkers(first);
+        return first;
+      }
+    }
+    return null;
+  }
+
+  private static void skipMarkers(Position position) {
+    while (position.segment.buffer.getInt(position.offset) == COMMIT) {
+      position.offset += COMMIT_SIZE;
+    }
+  }
+
+  private static byte[] read(MappedByteBuffer buffer, int offset, int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = buffer.get(offset + i);
+    }
+    return data;
+  }
+
+  private static int crc(long sessionId, byte[] record) {
+    CRC32 crc = new CRC32();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (sessionId >>> shift));
+    }
+    crc.update(record, 0, record.length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Location of an entry in the log
+   */
+  private static final class Position {
+    final Segment segment;
+    int offset;
+    long id;
+
+    Position(Segment segment, int offset, long id) {
+      this.segment = segment;
+      this.offset = offset;
+      this.id = id;
+    }
+  }
+
+  /**
+   * A mapped segment file
+   */
+  private static final class Segment {
+    final File file;
+    final RandomAccessFile randomAccessFile;
+    final MappedByteBuffer buffer;
+    final long baseId;
+    /**
+     * Number of committed entries
+     */
+    int count;
+    /**
+     * Offset after the last commit marker, where the next entry is written
+     */
+    int end;
+    /**
+     * Number of acknowledged entries
+     */
+    int acked;
+
+    private Segment(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer, long baseId) {
+      this.file = file;
+      this.randomAccessFile = randomAccessFile;
+      this.buffer = buffer;
+      this.baseId = baseId;
+      this.end = HEADER_SIZE;
+    }
+
+    static Segment create(File file, long baseId, int size) throws IOException {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(size);
+        MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+        buffer.putLong(OFFSET_BASE_ID, baseId);
+        buffer.putInt(OFFSET_ACKED, 0);
+        //the magic number is written last, a segment without it is discarded when the log is opened
+        buffer.putInt(0, MAGIC);
+        return new Segment(file, randomAccessFile, buffer, baseId);
+      } catch (IOException e) {
+        randomAccessFile.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Opens an existing segment and discards the entries which were not committed
+     *
+     * @return the {@link Segment} or null if the file is not a valid segment
+     */
+    static Segment open(File file) throws IOException {
+      long length = file.length();
+      if (length < HEADER_SIZE + COMMIT_SIZE || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        MappedByteBuffer buffer = randomAccessFile.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, length);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(OFFSET_VERSION) != FORMAT_VERSION) {
+          randomAccessFile.close();
+          return null;
+        }
+        Segment segment = new Segment(file, randomAccessFile, buffer, buffer.getLong(OFFSET_BASE_ID));
+        segment.recover();
+        return segment;
+      } catch (IOException e) {
+        randomAccessFile.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Scans the entries up to the last valid commit marker, anything after it is cleared
+     */
+    private void recover() {
+      int capacity = capacity();
+      int offset = HEADER_SIZE;
+      int entries = 0;
+      while (offset + 4 <= capacity) {
+        int length = buffer.getInt(offset);
+        if (length == COMMIT) {
+          if (offset + COMMIT_SIZE > capacity || buffer.getInt(offset + 4) != entries) {
+            break;
+          }
+          offset += COMMIT_SIZE;
+          count = entries;
+          end = offset;
+        } else if (length <= 0 || offset + ENTRY_HEADER_SIZE + length > capacity) {
+          break;
+        } else {
+          long sessionId = buffer.getLong(offset + 8);
+          byte[] record = read(buffer, offset + ENTRY_HEADER_SIZE, length);
+          if (buffer.getInt(offset + 4) != crc(sessionId, record)) {
+            break;
+          }
+          offset += ENTRY_HEADER_SIZE + length;
+          entries++;
+        }
+      }
+      if (end + 4 <= capacity && buffer.getInt(end) != 0) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.WARN, "Discarding uncommitted events in " + file.getName());
+        for (int i = end; i < capacity; i++) {
+          buffer.put(i, (byte) 0);
+        }
+      }
+      acked = Math.max(0, Math.min(buffer.getInt(OFFSET_ACKED), count));
+    }
+
+    int capacity() {
+      return buffer.capacity();
+    }
+
+    long lastId() {
+      return baseId + count - 1;
+    }
+
+    void close(boolean force) {
+      try {
+        if (force) {
+          buffer.force();
+        }
+        randomAccessFile.close();
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Closing event log segment", e);
+      }
+    }
+  }
+}
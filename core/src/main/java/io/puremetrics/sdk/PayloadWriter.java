@@ -0,0 +1,236 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes a request body as a stream of JSON tokens.
+ * Stored event records are decoded straight into the writer by {@link EventCodec}, and events stored
+ * as JSON text are copied as they are with {@link #rawValue(String)} instead of being parsed and
+ * serialized again. The MD5 checksum is computed while the bytes are written,
+ * so the request body exists exactly once in memory.
+ */
+final class PayloadWriter {
+
+  private static final int MAX_DEPTH = 32;
+
+  private final Checksum checksum = new Checksum();
+  private final Buffer buffer;
+  private final Writer writer;
+  /**
+   * Whether a value has already been written in the container at a depth
+   */
+  private final boolean[] hasValue = new boolean[MAX_DEPTH];
+  private int depth = 0;
+  private boolean afterName = false;
+
+  /**
+   * Constructor
+   *
+   * @param expectedSize Expected size of the request body in bytes
+   */
+  PayloadWriter(int expectedSize) {
+    buffer = new Buffer(expectedSize);
+    try {
+      writer = new OutputStreamWriter(checksum.wrap(buffer), "UTF-8");
+    } catch (IOException e) {
+      //UTF-8 is always supported
+      throw new IllegalStateException(e);
+    }
+  }
+
+  PayloadWriter beginObject() throws IOException {
+    open('{');
+    return this;
+  }
+
+  PayloadWriter endObject() throws IOException {
+    close('}');
+    return this;
+  }
+
+  PayloadWriter beginArray() throws IOException {
+    open('[');
+    return this;
+  }
+
+  PayloadWriter endArray() throws IOException {
+    close(']');
+    return this;
+  }
+
+  /**
+   * Opens a session object, the events of the session are written next
+   *
+   * @param sessionId The id of the session, which is also its start time
+   * @return the current instance of {@link PayloadWriter}
+   * @throws IOException if the session could not be written
+   */
+  PayloadWriter beginSession(long sessionId) throws IOException {
+    return beginObject()
+            .name(Constants.RequestAttributes.SESSION_ID).value(String.valueOf(sessionId))
+            .name(Constants.RequestAttributes.SESSION_START_TIME).value(sessionId)
+            .name(Constants.RequestAttributes.EVENT).beginArray();
+  }
+
+  PayloadWriter endSession() throws IOException {
+    return endArray().endObject();
+  }
+
+  /**
+   * Writes the name of the next member of the current object
+   *
+   * @param name The member name
+   * @return the current instance of {@link PayloadWriter}
+   * @throws IOException if the name could not be written
+   */
+  PayloadWriter name(String name) throws IOException {
+    separator();
+    writer.write(JSONObject.quote(name));
+    writer.write(':');
+    afterName = true;
+    return this;
+  }
+
+  PayloadWriter value(String value) throws IOException {
+    separator();
+    writer.write(JSONObject.quote(value));
+    return this;
+  }
+
+  PayloadWriter value(long value) throws IOException {
+    separator();
+    writer.write(Long.toString(value));
+    return this;
+  }
+
+  PayloadWriter value(boolean value) throws IOException {
+    separator();
+    writer.write(value ? "true" : "false");
+    return this;
+  }
+
+  /**
+   * Writes a number the way {@link JSONObject} does
+   *
+   * @param value The number, cannot be NaN or infinite
+   * @return the current instance of {@link PayloadWriter}
+   * @throws IOException if the number is not valid JSON or could not be written
+   */
+  PayloadWriter value(Number value) throws IOException {
+    String number;
+    try {
+      number = JSONObject.numberToString(value);
+    } catch (JSONException e) {
+      throw new IOException(e.getMessage());
+    }
+    separator();
+    writer.write(number);
+    return this;
+  }
+
+  PayloadWriter nullValue() throws IOException {
+    separator();
+    writer.write("null");
+    return this;
+  }
+
+  /**
+   * Writes a value which is already valid JSON text
+   *
+   * @param json The JSON text
+   * @return the current instance of {@link PayloadWriter}
+   * @throws IOException if the value could not be written
+   */
+  PayloadWriter rawValue(String json) throws IOException {
+    separator();
+    writer.write(json);
+    return this;
+  }
+
+  /**
+   * Completes the request body
+   *
+   * @return the {@link Payload} which has been written
+   * @throws IOException if the body could not be completed
+   */
+  Payload finish() throws IOException {
+    if (depth != 0) {
+      throw new IllegalStateException("Incomplete payload, depth: " + depth);
+    }
+    writer.flush();
+    return new Payload(buffer.buffer(), buffer.size(), checksum.hexDigest());
+  }
+
+  private void open(char c) throws IOException {
+    separator();
+    writer.write(c);
+    depth++;
+    hasValue[depth] = false;
+  }
+
+  private void close(char c) throws IOException {
+    writer.write(c);
+    depth--;
+  }
+
+  /**
+   * Writes the comma between two values of the same container
+   */
+  private void separator() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (depth > 0) {
+      if (hasValue[depth]) {
+        writer.write(',');
+      }
+      hasValue[depth] = true;
+    }
+  }
+
+  /**
+   * A {@link ByteArrayOutputStream} which hands out its buffer without copying it
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer(int size) {
+      super(size);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Transport} keeping several requests in flight, so that the next chunk of a sync is
+ * sent while the previous one is still waiting for its response.
+ * Every request in flight uses its own pooled keep-alive connection of the {@link UploadClient}.
+ * The sync waits for the oldest request once {@link #getMaxInFlight()} are outstanding,
+ * and handles the outcomes in the order the payloads were sent.
+ * Idle senders terminate after {@link Constants#TASK_THREAD_KEEP_ALIVE_SECONDS} seconds.
+ */
+final class PipelinedTransport implements Transport {
+
+  private final HttpTransport transport;
+  private final int maxInFlight;
+  private final ThreadPoolExecutor senders;
+
+  /**
+   * Constructor
+   *
+   * @param transport   The {@link HttpTransport} sending the requests
+   * @param maxInFlight Maximum number of requests in flight
+   */
+  PipelinedTransport(HttpTransport transport, int maxInFlight) {
+    this.transport = transport;
+    this.maxInFlight = maxInFlight;
+    senders = new ThreadPoolExecutor(
+            maxInFlight,
+            maxInFlight,
+            Constants.TASK_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    senders.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public Future<Integer> send(Payload payload) {
+    FutureTask<Integer> upload = transport.newUpload(payload);
+    senders.execute(upload);
+    return upload;
+  }
+
+  @Override
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+}
@@ -29,7 +29,6 @@ package io.puremetrics.sdk;
 import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -37,6 +36,8 @@ import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -46,17 +47,24 @@ import android.util.Log;
 
 import com.facebook.device.yearclass.YearClass;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
  * A helper class to interface with PureMetrics
@@ -81,13 +89,73 @@ public final class PureMetrics {
    */
   private static long _SESSION_DURATION = Constants.DEFAULT_SESSION_DURATION;
   /**
-   * A boolean which denotes whether upload is in progress or not
+   * Number of events buffered in memory before they are written to the DB
    */
-  private static boolean _UPLOAD_IN_PROGRESS = false;
+  private static int _EVENT_BATCH_SIZE = Constants.DEFAULT_EVENT_BATCH_SIZE;
+  /**
+   * Maximum time in milliseconds an event is buffered in memory before it is written to the DB
+   */
+  private static long _EVENT_FLUSH_DELAY = Constants.DEFAULT_EVENT_FLUSH_DELAY;
+  /**
+   * Storage engine for the events which are not yet uploaded
+   */
+  private static STORAGE_ENGINE _STORAGE_ENGINE = STORAGE_ENGINE.SQLITE;
+  /**
+   * Build the JSON of tracked events on the background writer instead of the calling thread
+   */
+  private static boolean _DEFERRED_EVENT_SERIALIZATION = true;
+  /**
+   * Maximum number of events held in memory
+   */
+  private static int _MAX_PENDING_EVENTS = Constants.DEFAULT_MAX_PENDING_EVENTS;
+  /**
+   * Policy applied when the in-memory queues are full
+   */
+  private static OVERFLOW_POLICY _OVERFLOW_POLICY = Constants.DEFAULT_OVERFLOW_POLICY;
+  /**
+   * Time in milliseconds a caller waits for space with {@link OVERFLOW_POLICY#BLOCK}
+   */
+  private static long _OVERFLOW_BLOCK_TIMEOUT = Constants.DEFAULT_OVERFLOW_BLOCK_TIMEOUT;
+  /**
+   * Transport of the uploads
+   */
+  private static TRANSPORT _TRANSPORT = TRANSPORT.HTTP;
+  /**
+   * The endpoint uploads are posted to
+   */
+  private static String _ENDPOINT = Constants.UPLOAD_URL;
+  /**
+   * Connect and read timeout of an upload request in milliseconds
+   */
+  private static int _UPLOAD_TIMEOUT = Constants.UPLOAD_TIMEOUT;
+  /**
+   * Maximum number of requests in flight with {@link TRANSPORT#PIPELINED}
+   */
+  private static int _MAX_INFLIGHT_UPLOADS = Constants.DEFAULT_MAX_INFLIGHT_UPLOADS;
+  /**
+   * Number of stored events which triggers a sync, 0 disables the threshold
+   */
+  private static int _FLUSH_MAX_EVENTS = Constants.DEFAULT_FLUSH_MAX_EVENTS;
+  /**
+   * Size in bytes of the stored events which triggers a sync, 0 disables the threshold
+   */
+  private static long _FLUSH_MAX_BYTES = Constants.DEFAULT_FLUSH_MAX_BYTES;
+  /**
+   * Age in milliseconds of the oldest stored event which triggers a sync, 0 disables the threshold
+   */
+  private static long _FLUSH_MAX_AGE = Constants.DEFAULT_FLUSH_MAX_AGE;
+  /**
+   * Gzip compress the request body while uploading
+   */
+  private static boolean _GZIP_ENABLED = false;
+  /**
+   * Compression level used when {@link #_GZIP_ENABLED} is set
+   */
+  private static int _COMPRESSION_LEVEL = Constants.DEFAULT_COMPRESSION_LEVEL;
   /**
    * Reset user information after upload. This is required when the user logs out
    */
-  private static boolean _RESET_AFTER_UPLOAD = false;
+  private static volatile boolean _RESET_AFTER_UPLOAD = false;
   /**
    * An insternal instance of {@link Builder} but this is set to NULL later
    * on since it is not required always
@@ -107,13 +175,13 @@ public final class PureMetrics {
    */
   private static boolean oldUser = false;
   /**
-   * A mutex used for locking all {@link #preferences} operations
+   * A mutex used for the read-modify-write operations on the {@link #stateFile}
    */
-  private final Object lock_sharedPref = new Object();
+  private final Object lock_state = new Object();
   /**
-   * Current session Id
+   * Current session and the last activity of the user
    */
-  long sessionId;
+  private SessionState sessionState;
   /**
    * An instance of the application {@link Context}
    */
@@ -122,14 +190,64 @@ public final class PureMetrics {
    * An instance of the {@link DBHelper}
    */
   private DBHelper databaseHelper;
+  /**
+   * The {@link EventStore} of the selected {@link STORAGE_ENGINE}
+   */
+  private EventStore eventStore;
+  /**
+   * Write-behind buffer for tracked events
+   */
+  private EventBuffer eventBuffer;
+  /**
+   * Write-behind cache of the user and device attributes
+   */
+  private AttributeCache attributeCache;
   /**
    * Authorization Bytes to be added for Http BASIC Auth
    */
   private String authBytes;
   /**
-   * The {@link SharedPreferences} which will be used
+   * The {@link Transport} of the selected {@link TRANSPORT}
    */
-  private SharedPreferences preferences;
+  private Transport transport;
+  /**
+   * The {@link StateFile} with the state retained across launches
+   */
+  private StateFile stateFile;
+  /**
+   * The {@link UploadScheduler} holding back syncs after failed uploads
+   */
+  private UploadScheduler uploadScheduler;
+  /**
+   * The {@link SyncCoordinator} letting one sync run at a time
+   */
+  private final SyncCoordinator syncCoordinator = new SyncCoordinator(Constants.SYNC_STALE_TIMEOUT);
+  /**
+   * Main thread handler the retries of failed syncs and the age checks of the {@link FlushPolicy} are posted to
+   */
+  private Handler syncHandler;
+  /**
+   * Retries a failed sync once its backoff has passed
+   */
+  private final Runnable retrySync = new Runnable() {
+    @Override
+    public void run() {
+      scheduleDataSync();
+    }
+  };
+  /**
+   * The {@link FlushPolicy} syncing during long foreground sessions
+   */
+  private FlushPolicy flushPolicy;
+  /**
+   * Lets the {@link FlushPolicy} check the age of the pending events
+   */
+  private final Runnable flushAgeCheck = new Runnable() {
+    @Override
+    public void run() {
+      flushPolicy.check(System.currentTimeMillis());
+    }
+  };
   /**
    * A failsafe when developer tracks transaction start and
    * provides an id and then fails to set the same in succes or failure
@@ -155,11 +273,44 @@ public final class PureMetrics {
     //appID change is not a valid scenario
     //If appId changes drop DB
     appContext = context.getApplicationContext();
-    preferences = appContext.getSharedPreferences(Constants.SHARED_PREF_NAME, Context.MODE_PRIVATE);
     //this has to be on the main thread
-    sessionId = getLastKnownSessionId();
+    stateFile = StateFile.open(new File(appContext.getFilesDir(), Constants.STATE_FILE_NAME),
+            appContext.getSharedPreferences(Constants.SHARED_PREF_NAME, Context.MODE_PRIVATE));
+    sessionState = new SessionState(stateFile);
+    uploadScheduler = new UploadScheduler(stateFile, new Random());
+    syncHandler = new Handler(Looper.getMainLooper());
+    flushPolicy = new FlushPolicy(_FLUSH_MAX_EVENTS, _FLUSH_MAX_BYTES, _FLUSH_MAX_AGE, new FlushPolicy.Listener() {
+      @Override
+      public void onFlushDue() {
+        log(LOG_LEVEL.DEBUG, "Flush threshold crossed, syncing " + flushPolicy.getPendingEvents() + " events");
+        scheduleDataSync();
+      }
+
+      @Override
+      public void scheduleAgeCheck(long delay) {
+        syncHandler.removeCallbacks(flushAgeCheck);
+        syncHandler.postDelayed(flushAgeCheck, delay);
+      }
+    });
+    TaskManager.getInstance().setOverflowPolicy(_OVERFLOW_POLICY, _OVERFLOW_BLOCK_TIMEOUT);
     TaskManager.getInstance().warmup();
     databaseHelper = DBHelper.getInstance(appContext);
+    eventStore = _STORAGE_ENGINE == STORAGE_ENGINE.MAPPED_LOG
+            ? new MappedEventLog(new File(appContext.getFilesDir(), Constants.EVENT_LOG_DIRECTORY),
+            Constants.EVENT_LOG_SEGMENT_SIZE)
+            : databaseHelper;
+    eventBuffer = new EventBuffer(eventStore, flushPolicy, _EVENT_BATCH_SIZE, _EVENT_FLUSH_DELAY,
+            _MAX_PENDING_EVENTS, _OVERFLOW_POLICY, _OVERFLOW_BLOCK_TIMEOUT);
+    attributeCache = new AttributeCache(databaseHelper);
+    try {
+      HttpTransport httpTransport = new HttpTransport(UploadClient.create(_ENDPOINT, _UPLOAD_TIMEOUT), authBytes,
+              Utils.isDebugBuild(appContext), _GZIP_ENABLED, _COMPRESSION_LEVEL);
+      transport = _TRANSPORT == TRANSPORT.PIPELINED
+              ? new PipelinedTransport(httpTransport, _MAX_INFLIGHT_UPLOADS)
+              : httpTransport;
+    } catch (IOException e) {
+      log(LOG_LEVEL.FATAL, "Invalid upload endpoint: " + _ENDPOINT, e);
+    }
 
     mBuilder = null;
     _INSTANCE = this;
@@ -176,13 +327,10 @@ public final class PureMetrics {
     }
     if (AUTO_TRACKING_ENABLED || override) {
       long curTime = System.currentTimeMillis();
-      long lastActiveTime = _INSTANCE.getLastActiveTime();
-      _INSTANCE.setLastActiveTime();//This is required SINCE CheckAndTrackSession is called more than once
-
-      if ((lastActiveTime + _SESSION_DURATION) < curTime) {
-        PureMetrics.log(LOG_LEVEL.DEBUG, "Last known session start: " + _INSTANCE.sessionId + " current time: " + curTime + " | _SESSION_DURATION: " + _SESSION_DURATION);
-        _INSTANCE.sessionId = curTime;
-        _INSTANCE.saveNewSessionId(curTime);
+      long lastSessionId = _INSTANCE.sessionState.getSessionId();
+      //only written to the state file if a new session starts
+      if (_INSTANCE.sessionState.touch(curTime, _SESSION_DURATION)) {
+        PureMetrics.log(LOG_LEVEL.DEBUG, "Last known session start: " + lastSessionId + " current time: " + curTime + " | _SESSION_DURATION: " + _SESSION_DURATION);
         if (null == map) {
           map = new HashMap<>();
         }
@@ -193,11 +341,11 @@ public final class PureMetrics {
       }
     }
 
-    if (_INSTANCE.isFirstTimeUser()) {
+    if (_INSTANCE.sessionState.checkFirstTimeUser()) {
       trackAcquisition();
     }
 
-    if (!_INSTANCE.isDeviceInfoCollected()) {
+    if (!_INSTANCE.sessionState.checkDeviceInfoCollected()) {
       _INSTANCE.collectDeviceInfo();
     }
     Utils.enableNetworkListener(_INSTANCE.appContext);
@@ -264,7 +412,7 @@ public final class PureMetrics {
    * @param e       instance of {@link Throwable} which needs to be logged
    */
   static void log(LOG_LEVEL level, String message, Throwable e) {
-    if (level.compareTo(logLevel) < 1) {
+    if (isLoggable(level)) {
       if (level == LOG_LEVEL.VERBOSE)
         Log.v(TAG, message, e);
       else if (level == LOG_LEVEL.DEBUG)
@@ -278,6 +426,17 @@ public final class PureMetrics {
     }
   }
 
+  /**
+   * Checks if messages of a {@link LOG_LEVEL} are logged.
+   * Used to skip building expensive log messages
+   *
+   * @param level The {@link LOG_LEVEL} to check
+   * @return true if messages of the level are logged
+   */
+  static boolean isLoggable(LOG_LEVEL level) {
+    return level.compareTo(logLevel) < 1;
+  }
+
   /**
    * Logs an API error for PureMetrics.
    *
@@ -310,15 +469,69 @@ public final class PureMetrics {
   }
 
   /**
-   * Call to increment a counter when an activity stops
+   * Call to decrement a counter when an activity stops.
+   * The last active time is only written when the last activity stops
    */
   static synchronized void stopActivity() {
     ACTIVITY_COUNTER--;
     if (initialized()) {
-      _INSTANCE.setLastActiveTime();
+      _INSTANCE.sessionState.markActive(System.currentTimeMillis(), ACTIVITY_COUNTER <= 0);
+    }
+  }
+
+  /**
+   * Writes all the buffered events to the DB.
+   * Called when the app goes to background
+   */
+  static void flushEvents() {
+    if (initialized()) {
+      _INSTANCE.eventBuffer.flush();
     }
   }
 
+  /**
+   * Get the number of events which were dropped because too many events were pending in memory.
+   * See {@link Builder#setOverflowPolicy(OVERFLOW_POLICY)}
+   *
+   * @return the number of dropped events since the SDK was initialized
+   */
+  public static long getDroppedEventCount() {
+    return initialized() ? _INSTANCE.eventBuffer.getDroppedEvents() : 0;
+  }
+
+  /**
+   * Get the number of events which were written on the calling thread
+   * because too many events were pending in memory.
+   * See {@link OVERFLOW_POLICY#SPILL_TO_DISK}
+   *
+   * @return the number of spilled events since the SDK was initialized
+   */
+  public static long getSpilledEventCount() {
+    return initialized() ? _INSTANCE.eventBuffer.getSpilledEvents() : 0;
+  }
+
+  /**
+   * Get the number of background tasks which were dropped because too many tasks were queued.
+   * Only the release of resources on memory pressure may be dropped, the writes and uploads of the SDK are not.
+   * See {@link Builder#setOverflowPolicy(OVERFLOW_POLICY)}
+   *
+   * @return the number of dropped tasks since the SDK was initialized
+   */
+  public static long getDroppedTaskCount() {
+    return initialized() ? TaskManager.getInstance().getDroppedTasks() : 0;
+  }
+
+  /**
+   * Get the number of storage tasks which were run on the calling thread
+   * because too many tasks were queued.
+   * See {@link OVERFLOW_POLICY#SPILL_TO_DISK}
+   *
+   * @return the number of spilled tasks since the SDK was initialized
+   */
+  public static long getSpilledTaskCount() {
+    return initialized() ? TaskManager.getInstance().getSpilledTasks() : 0;
+  }
+
   /**
    * To be called when a user signs out.
    * This moves the user back to an anonymous state.
@@ -330,7 +543,10 @@ public final class PureMetrics {
 
   /**
    * Track an event and its associated event attribute.
-   * Event attributes are additional information which define an event
+   * Event attributes are additional information which define an event.
+   * Unless deferred serialization is disabled, only a shallow copy of the attributes is taken
+   * on the calling thread, nested maps and lists must not be modified after the call.
+   * See {@link Builder#setDeferredEventSerialization(boolean)}
    *
    * @param eventName  The name of the event
    * @param attributes A {@link HashMap} of the event attributes
@@ -341,26 +557,16 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-    try {
-      final JSONObject customEvent = new JSONObject();
-      customEvent.put(Constants.RequestAttributes.EVENT_NAME, eventName);
-      customEvent.put(Constants.RequestAttributes.TS, System.currentTimeMillis());
-      if (null != attributes && attributes.size() > 0) {
-        try {
-          customEvent.put(Constants.RequestAttributes.EVENT_ATTRS, new JSONObject(attributes));
-        } catch (Throwable e) {
-          log(LOG_LEVEL.ERROR, "trackEvent", e);
-        }
+    Event event = new Event(_INSTANCE.sessionState.getSessionId(), eventName, System.currentTimeMillis(), attributes);
+    if (!_DEFERRED_EVENT_SERIALIZATION) {
+      try {
+        event.toRecord();
+      } catch (JSONException e) {
+        log(LOG_LEVEL.ERROR, "trackEvent", e);
+        return;
       }
-      TaskManager.getInstance().executeTask(new Runnable() {
-        @Override
-        public void run() {
-          _INSTANCE.databaseHelper.storeEvents(customEvent.toString());
-        }
-      });
-    } catch (JSONException e) {
-      log(LOG_LEVEL.ERROR, "trackEvent", e);
     }
+    _INSTANCE.eventBuffer.add(event);
   }
 
   /**
@@ -386,19 +592,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeUserAttributes(new StringBuilder().append("\"")
-                .append(userProperty)
-                .append("\"")
-                .append(" : ")
-                .append("\"")
-                .append(propertyValue)
-                .append("\"")
-                .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_USER, userProperty, propertyValue);
   }
 
   /**
@@ -413,17 +607,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeUserAttributes(new StringBuilder().append("\"")
-                .append(userProperty)
-                .append("\"")
-                .append(" : ")
-                .append(propertyValue)
-                .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_USER, userProperty, propertyValue);
   }
 
   /**
@@ -438,17 +622,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeUserAttributes(new StringBuilder().append("\"")
-                .append(userProperty)
-                .append("\"")
-                .append(" : ")
-                .append(propertyValue)
-                .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_USER, userProperty, propertyValue);
   }
 
   /**
@@ -463,18 +637,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeUserAttributes(new StringBuilder().append("\"")
-                .append(userProperty)
-                .append("\"")
-                .append(" : ")
-                .append(propertyValue)
-                .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_USER, userProperty, propertyValue);
   }
 
   /**
@@ -489,19 +652,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeDeviceAttributes(new StringBuilder().append("\"")
-                .append(deviceProperty)
-                .append("\"")
-                .append(" : ")
-                .append("\"")
-                .append(propertyValue)
-                .append("\"")
-                .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_DEVICE, deviceProperty, propertyValue);
   }
 
   /**
@@ -516,18 +667,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeDeviceAttributes(new StringBuilder().append("\"")
-                .append(deviceProperty)
-                .append("\"")
-                .append(" : ")
-                .append(propertyValue)
-                .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_DEVICE, deviceProperty, propertyValue);
   }
   /**
    * Track a device  property/trait. These are user level identifiers
@@ -541,18 +681,7 @@ public final class PureMetrics {
               "Please add PureMetrics.withBuilder().setAppConfiguration().init(context)");
       return;
     }
-    TaskManager.getInstance().executeTask(new Runnable() {
-      @Override
-      public void run() {
-        _INSTANCE.databaseHelper.storeDeviceAttributes(
-                new StringBuilder().append("\"")
-                        .append(deviceProperty)
-                        .append("\"")
-                        .append(":")
-                        .append(propertyValue)
-                        .toString());
-      }
-    });
+    _INSTANCE.attributeCache.put(Constants.ATTRIBUTE_TYPE_DEVICE, deviceProperty, propertyValue);
   }
 
   /**
@@ -654,9 +783,7 @@ public final class PureMetrics {
       log(LOG_LEVEL.DEBUG, "Not initialized yet. Will set a variable  and hope its picked up");
       return;
     }
-    synchronized (_INSTANCE.lock_sharedPref) {
-      _INSTANCE.preferences.edit().putBoolean(Constants.PREF_KEYS.OLDUSER, true).apply();
-    }
+    _INSTANCE.stateFile.putBoolean(StateFile.OLDUSER, true);
   }
 
   /**
@@ -725,9 +852,7 @@ public final class PureMetrics {
     if (!initialized()) {
       return false;
     }
-    synchronized (_INSTANCE.lock_sharedPref) {
-      return _INSTANCE.preferences.getBoolean(Constants.PREF_KEYS.OLDUSER, false);
-    }
+    return _INSTANCE.stateFile.getBoolean(StateFile.OLDUSER, false);
   }
 
   /**
@@ -782,9 +907,7 @@ public final class PureMetrics {
    */
   public static void setUserId(final String userId) {
     if (initialized()) {
-      synchronized (_INSTANCE.lock_sharedPref) {
-        _INSTANCE.preferences.edit().putString(Constants.PREF_KEYS.LINKING_ID, userId).apply();
-      }
+      _INSTANCE.stateFile.putText(StateFile.LINKING_ID, userId);
     }
     trackUserProperties(Constants.UserAttributes.USER_ID, userId);
   }
@@ -816,28 +939,27 @@ public final class PureMetrics {
    */
   private void registerLifeCycleHandler(Context context) {
     this.appContext = context.getApplicationContext();
-    ((Application) appContext).registerActivityLifecycleCallbacks(new ActivityLifecycleListener());
+    ActivityLifecycleListener listener = new ActivityLifecycleListener();
+    ((Application) appContext).registerActivityLifecycleCallbacks(listener);
+    appContext.registerComponentCallbacks(listener);
   }
 
   /**
-   * Get the last known sessionId
-   *
-   * @return the last known sessionId
+   * Releases resources which are otherwise held for the lifetime of the process.
+   * Called when the system asks the app to trim its memory
    */
-  private long getLastKnownSessionId() {
-    synchronized (lock_sharedPref) {
-      return preferences.getLong(Constants.PREF_KEYS.LAST_SESSION_ID, 0);
-    }
-  }
-
-  /**
-   * Save new session id
-   *
-   * @param sessionId The session id which needs to be saved
-   */
-  private void saveNewSessionId(long sessionId) {
-    synchronized (lock_sharedPref) {
-      preferences.edit().putLong(Constants.PREF_KEYS.LAST_SESSION_ID, sessionId).apply();
+  static void releaseResources() {
+    if (initialized()) {
+      //skipped if the storage lane is overloaded, the next trim asks again
+      TaskManager.getInstance().tryExecuteStorageTask(new Runnable() {
+        @Override
+        public void run() {
+          _INSTANCE.databaseHelper.release();
+          if (_INSTANCE.eventStore != _INSTANCE.databaseHelper) {
+            _INSTANCE.eventStore.release();
+          }
+        }
+      });
     }
   }
 
@@ -847,11 +969,11 @@ public final class PureMetrics {
    * @return The unqiue device identifier
    */
   private String getDeviceId() {
-    synchronized (lock_sharedPref) {
-      String deviceId = preferences.getString(Constants.PREF_KEYS.DEVICE_ID, null);
+    synchronized (lock_state) {
+      String deviceId = stateFile.getText(StateFile.DEVICE_ID);
       if (null == deviceId) {
         deviceId = Utils.getDeviceId(appContext);
-        preferences.edit().putString(Constants.PREF_KEYS.DEVICE_ID, deviceId).apply();
+        stateFile.putText(StateFile.DEVICE_ID, deviceId);
       }
       return deviceId;
     }
@@ -863,82 +985,68 @@ public final class PureMetrics {
    * @return The unique anonymous id
    */
   private String getAnonymousId() {
-    synchronized (lock_sharedPref) {
-      String id = preferences.getString(Constants.PREF_KEYS.ANONYMOUS_ID, null);
+    synchronized (lock_state) {
+      String id = stateFile.getText(StateFile.ANONYMOUS_ID);
       if (null == id) {
         id = Utils.generateRandomId();
-        preferences.edit().putString(Constants.PREF_KEYS.ANONYMOUS_ID, id).apply();
+        stateFile.putText(StateFile.ANONYMOUS_ID, id);
       }
       return id;
     }
   }
 
-  /**
-   * Check if its a new user or recurring user
-   *
-   * @return true if it is a new user
-   */
-  private boolean isFirstTimeUser() {
-    synchronized (lock_sharedPref) {
-      boolean res = preferences.getBoolean(Constants.PREF_KEYS.IS_NEW_USER, true);
-      preferences.edit().putBoolean(Constants.PREF_KEYS.IS_NEW_USER, false).apply();
-      return res;
-    }
-  }
-
-  private boolean isDeviceInfoCollected() {
-    synchronized (lock_sharedPref) {
-      boolean res = preferences.getBoolean(Constants.PREF_KEYS.DEVICEINFO_COLLECTED, false);
-      preferences.edit().putBoolean(Constants.PREF_KEYS.DEVICEINFO_COLLECTED, true).apply();
-      return res;
-    }
-  }
-
   /**
    * Prepare the JSON payload for the HTTP request
    *
-   * @return get the string representation of the request
-   */
-  private String prepareRequest() {
+   * @param store           The {@link EventStore} the page was read from
+   * @param page            The {@link EventStore.EventPage} of events to be sent, can be null
+   * @param lastAttributeId The id of the last attribute to be sent, -1 if no attributes are to be sent
+   * @return the serialized {@link Payload} of the request or null if there is nothing to send
+   * @throws EventStore.CorruptEventException if an event record of the page cannot be decoded
+   */
+  private Payload prepareRequest(EventStore store, EventStore.EventPage page, long lastAttributeId)
+          throws EventStore.CorruptEventException {
     try {
-      JSONObject requestObject = new JSONObject();
-      JSONArray e = PureMetrics._INSTANCE.databaseHelper.getEventsData();
-      JSONObject da = PureMetrics._INSTANCE.databaseHelper.getDeviceAttributesIfAny();
-      JSONObject ua = PureMetrics._INSTANCE.databaseHelper.getUserAttributesIfAny();
-      boolean sendData = false;
-      if (null != da) {
-        sendData = true;
-        requestObject.put(Constants.RequestAttributes.DA, da);
-      }
-      if (null != da) {
-        sendData = true;
-        requestObject.put(Constants.RequestAttributes.UA, ua);
-      }
-      if (null != e) {
-        sendData = true;
-        requestObject.put(Constants.RequestAttributes.SESSION, e);
-      }
-      if (!sendData) {
+      String da = PureMetrics._INSTANCE.databaseHelper.getDeviceAttributesIfAny(lastAttributeId);
+      String ua = PureMetrics._INSTANCE.databaseHelper.getUserAttributesIfAny(lastAttributeId);
+      if (null == da && null == ua && null == page) {
         return null;
       }
       PackageInfo pInfo = appContext.getPackageManager().getPackageInfo(appContext.getPackageName(), 0);
       String versionName = pInfo.versionName;
       int versionCode = pInfo.versionCode;
-      requestObject.put(Constants.RequestAttributes.AI, getAnonymousId());
-      requestObject.put(Constants.RequestAttributes.DI, getDeviceId());
-      requestObject.put(Constants.RequestAttributes.TS, System.currentTimeMillis());
-      requestObject.put(Constants.RequestAttributes.TZ, TimeZone.getDefault().getID());
-      requestObject.put(Constants.RequestAttributes.PL, Constants.PLATFORM_VALUE);
-      requestObject.put(Constants.RequestAttributes.APP_VERSION_CODE, versionCode);
-      requestObject.put(Constants.RequestAttributes.APP_VERSION_NAME, versionName);
-      requestObject.put(Constants.RequestAttributes.CONNECTION_TYPE, Utils.getNetworkClass(appContext));
-      requestObject.put(Constants.RequestAttributes.LANGUAGE, Utils.getDeviceLanguage());
-      requestObject.put(Constants.RequestAttributes.SDK_VERSION, BuildConfig.VERSION_CODE);
-      String li = preferences.getString(Constants.PREF_KEYS.LINKING_ID, null);
+      PayloadWriter writer = new PayloadWriter((null == page ? 0 : page.size) + Constants.REQUEST_OVERHEAD_BYTES);
+      writer.beginObject();
+      if (null != da) {
+        writer.name(Constants.RequestAttributes.DA).rawValue(da);
+      }
+      if (null != ua) {
+        writer.name(Constants.RequestAttributes.UA).rawValue(ua);
+      }
+      if (null != page) {
+        writer.name(Constants.RequestAttributes.SESSION);
+        store.writeEvents(page, writer);
+      }
+      writer.name(Constants.RequestAttributes.AI).value(getAnonymousId());
+      writer.name(Constants.RequestAttributes.DI).value(getDeviceId());
+      writer.name(Constants.RequestAttributes.TS).value(System.currentTimeMillis());
+      writer.name(Constants.RequestAttributes.TZ).value(TimeZone.getDefault().getID());
+      writer.name(Constants.RequestAttributes.PL).value(Constants.PLATFORM_VALUE);
+      writer.name(Constants.RequestAttributes.APP_VERSION_CODE).value(versionCode);
+      if (null != versionName) {
+        writer.name(Constants.RequestAttributes.APP_VERSION_NAME).value(versionName);
+      }
+      writer.name(Constants.RequestAttributes.CONNECTION_TYPE).value(Utils.getNetworkClass(appContext));
+      writer.name(Constants.RequestAttributes.LANGUAGE).value(Utils.getDeviceLanguage());
+      writer.name(Constants.RequestAttributes.SDK_VERSION).value(BuildConfig.VERSION_CODE);
+      String li = stateFile.getText(StateFile.LINKING_ID);
       if (!TextUtils.isEmpty(li)) {
-        requestObject.put(Constants.RequestAttributes.LI, li);
+        writer.name(Constants.RequestAttributes.LI).value(li);
       }
-      return requestObject.toString();
+      writer.endObject();
+      return writer.finish();
+    } catch (EventStore.CorruptEventException e) {
+      throw e;
     } catch (Throwable e) {
       log(LOG_LEVEL.FATAL, "prepareRequest for uploading", e);
     }
@@ -946,67 +1054,253 @@ public final class PureMetrics {
   }
 
   /**
-   * Schedule a data upload
+   * Schedule a data upload. A request arriving while an upload runs is coalesced into
+   * one more run after it, see {@link SyncCoordinator}
    */
   void scheduleDataSync() {
-    if (_UPLOAD_IN_PROGRESS) {
+    if (!syncCoordinator.request(System.currentTimeMillis())) {
       log(LOG_LEVEL.DEBUG, "Upload is already in progress . . .");
       return;
     }
-    _UPLOAD_IN_PROGRESS = true;
     TaskManager.getInstance().executeTask(new Runnable() {
       @Override
       public void run() {
-        try {
-          ConnectivityManager cm =
-                  (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-          NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-          boolean debugBuild = Utils.isDebugBuild(appContext);
-          boolean isConnected = activeNetwork != null &&
-                  activeNetwork.isConnectedOrConnecting();
-          if (!isConnected) {
-            log(LOG_LEVEL.DEBUG, "Not connected to Internet. Will schedule sync for later");
-            return;
-          }
-          String payload = prepareRequest();
-          if (null != payload) {
-            boolean result = Utils.uploadData(authBytes, payload, debugBuild);
-            if (result) {
-              Utils.disableNetworkListener(appContext);
-              databaseHelper.clearData();
-            } else if (_RESET_AFTER_UPLOAD) {
-              // this is where things go tricky,
-              // if upload is pending and user resets in that case
-              // we can simply reject the payload
-              databaseHelper.clearData();
-            } else {
-              Utils.enableNetworkListener(appContext);
+        if (!syncCoordinator.begin()) {
+          return;
+        }
+        do {
+          try {
+            syncData();
+          } catch (Throwable e) {
+            log(LOG_LEVEL.FATAL, "Failed to sync data", e);
+          } finally {
+            if (_RESET_AFTER_UPLOAD) {
+              _RESET_AFTER_UPLOAD = false;
+              resetUserInfoInternal();
             }
-          } else {
-            PureMetrics.log(LOG_LEVEL.DEBUG, "Found Nothing to send");
-            Utils.disableNetworkListener(appContext);
-          }
-        } finally {
-          _UPLOAD_IN_PROGRESS = false;
-          if (_RESET_AFTER_UPLOAD) {
-            resetUserInfoInternal();
-            _RESET_AFTER_UPLOAD = false;
           }
-        }
+        } while (syncCoordinator.finish(!uploadScheduler.isDue(System.currentTimeMillis())));
+        //a sync which was skipped or failed holds the flush policy until the next attempt
+        flushPolicy.onSyncEnded(System.currentTimeMillis(), uploadScheduler.getNextAttemptTime());
       }
     });
   }
 
+  /**
+   * Uploads the stored events and attributes, run by one thread at a time
+   */
+  private void syncData() {
+    ConnectivityManager cm =
+            (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+    boolean isConnected = activeNetwork != null &&
+            activeNetwork.isConnectedOrConnecting();
+    if (!isConnected) {
+      log(LOG_LEVEL.DEBUG, "Not connected to Internet. Will schedule sync for later");
+      return;
+    }
+    if (null == transport) {
+      return;
+    }
+    //a reset still goes ahead, it drops what could not be sent
+    if (!_RESET_AFTER_UPLOAD && !uploadScheduler.isDue(System.currentTimeMillis())) {
+      log(LOG_LEVEL.DEBUG, "Backing off after a failed upload until " + uploadScheduler.getNextAttemptTime());
+      return;
+    }
+    //the buffered events are written by the single writer, never by the sync itself
+    awaitStorageTask(eventBuffer.flush());
+    awaitStorageTask(attributeCache.flush());
+    FlushPolicy.Mark flushMark = flushPolicy.mark(System.currentTimeMillis());
+    //events left in the engine which is not selected are uploaded as well
+    EventStore[] stores = eventStore == databaseHelper
+            ? new EventStore[]{databaseHelper}
+            : new EventStore[]{eventStore, databaseHelper};
+    //snapshot of what is sent in this sync, anything stored later is left for the next one
+    long[] lastEventIds = new long[stores.length];
+    for (int i = 0; i < stores.length; i++) {
+      lastEventIds[i] = stores[i].getLastEventId();
+    }
+    long lastAttributeId = databaseHelper.getLastAttributeId();
+    int failure = 0;
+    boolean accepted = false;
+    ArrayDeque<Upload> inFlight = new ArrayDeque<>();
+    for (int i = 0; i < stores.length && failure == 0; i++) {
+      EventStore store = stores[i];
+      long afterEventId = 0;
+      //pages stop short of a corrupt event record, it is dropped once the events before it are acknowledged
+      long corruptEventId = -1;
+      //the attributes are sent along with the first chunk
+      while (failure == 0) {
+        EventStore.EventPage page = store.getEventsPage(afterEventId,
+                corruptEventId == -1 ? lastEventIds[i] : corruptEventId - 1,
+                Constants.UPLOAD_PAGE_SIZE, Constants.UPLOAD_CHUNK_MAX_BYTES);
+        Payload payload;
+        try {
+          payload = prepareRequest(store, page, lastAttributeId);
+        } catch (EventStore.CorruptEventException e) {
+          log(LOG_LEVEL.ERROR, "Dropping an event which cannot be sent", e);
+          corruptEventId = e.eventId;
+          continue;
+        }
+        if (null != payload) {
+          inFlight.add(new Upload(store, page, lastAttributeId, transport.send(payload)));
+          lastAttributeId = -1;
+        }
+        boolean dropCorrupt = null == page && corruptEventId != -1;
+        if (dropCorrupt) {
+          inFlight.add(new Upload(store, new EventStore.EventPage(afterEventId, corruptEventId, 1, 0), -1, null));
+        }
+        //wait for the oldest request once the transport has as many in flight as it takes
+        while (failure == 0 && inFlight.size() >= transport.getMaxInFlight()) {
+          failure = completeUpload(inFlight.poll());
+          accepted |= failure == 0;
+        }
+        if (dropCorrupt) {
+          afterEventId = corruptEventId;
+          corruptEventId = -1;
+        } else if (null != page && null != payload) {
+          afterEventId = page.lastEventId;
+        } else {
+          break;
+        }
+      }
+    }
+    //outcomes are handled in the order the requests were sent,
+    //nothing sent after a failed request is acknowledged and it is sent again with the next sync
+    while (!inFlight.isEmpty()) {
+      Upload upload = inFlight.poll();
+      if (failure != 0) {
+        awaitUpload(upload);
+      } else {
+        failure = completeUpload(upload);
+        accepted |= failure == 0;
+      }
+    }
+    if (failure == 0 || accepted) {
+      //the server took what it was sent, only the failures from here on count
+      uploadScheduler.onSuccess();
+    }
+    if (failure == 0) {
+      flushPolicy.onSynced(flushMark, System.currentTimeMillis());
+      Utils.disableNetworkListener(appContext);
+    } else if (_RESET_AFTER_UPLOAD) {
+      // this is where things go tricky,
+      // if upload is pending and user resets in that case
+      // we can simply reject the payload
+      //the user attributes are deleted by the reset, the device attributes are sent with the next upload
+      for (int i = 0; i < stores.length; i++) {
+        stores[i].deleteEvents(0, lastEventIds[i]);
+      }
+      flushPolicy.onSynced(flushMark, System.currentTimeMillis());
+    } else {
+      long delay = uploadScheduler.onFailure(failure, System.currentTimeMillis());
+      log(LOG_LEVEL.DEBUG, "Upload failed with " + failure + ", next attempt in " + delay + "ms");
+      if (delay >= 0) {
+        syncHandler.removeCallbacks(retrySync);
+        syncHandler.postDelayed(retrySync, delay);
+      }
+      Utils.enableNetworkListener(appContext);
+    }
+  }
+
+  /**
+   * Waits for an upload and acknowledges what it carried if it was accepted
+   *
+   * @param upload The {@link Upload} to be completed
+   * @return 0 if the upload was accepted, else the HTTP status of the response or {@link Transport#NO_RESPONSE}
+   */
+  private int completeUpload(Upload upload) {
+    int responseCode = awaitUpload(upload);
+    if (null != upload.result && !UploadClient.isAccepted(responseCode)) {
+      return responseCode;
+    }
+    if (upload.lastAttributeId != -1) {
+      databaseHelper.acknowledgeAttributes(upload.lastAttributeId);
+    }
+    EventStore.EventPage page = upload.page;
+    if (null != page) {
+      log(LOG_LEVEL.DEBUG, "Uploaded events (" + page.afterEventId + ", " + page.lastEventId + "]");
+      upload.store.deleteEvents(page.afterEventId, page.lastEventId);
+    }
+    return 0;
+  }
+
+  /**
+   * Waits for a task on the storage lane of the {@link TaskManager}
+   *
+   * @param task The {@link Future} of the task, null if it was not submitted
+   */
+  private static void awaitStorageTask(Future<?> task) {
+    if (null == task) {
+      return;
+    }
+    try {
+      task.get();
+    } catch (Throwable e) {
+      log(LOG_LEVEL.ERROR, "Failed to wait for a storage task", e);
+    }
+  }
+
+  /**
+   * Waits for an upload
+   *
+   * @param upload The {@link Upload} to wait for
+   * @return the HTTP status of the response or {@link Transport#NO_RESPONSE}
+   */
+  private static int awaitUpload(Upload upload) {
+    if (null == upload.result) {
+      return Transport.NO_RESPONSE;
+    }
+    try {
+      return upload.result.get();
+    } catch (Throwable e) {
+      log(LOG_LEVEL.FATAL, "Failed to upload data", e);
+    }
+    return Transport.NO_RESPONSE;
+  }
+
+  /**
+   * A request sent by the {@link Transport} and what it carries
+   */
+  private static final class Upload {
+    final EventStore store;
+    /**
+     * The page of events, null if only attributes are sent
+     */
+    final EventStore.EventPage page;
+    /**
+     * The id of the last attribute sent, -1 if no attributes are sent
+     */
+    final long lastAttributeId;
+    /**
+     * The response of the request, null if nothing is sent and the page only holds
+     * a corrupt event record, which is dropped when it is completed
+     */
+    final Future<Integer> result;
+
+    Upload(EventStore store, EventStore.EventPage page, long lastAttributeId, Future<Integer> result) {
+      this.store = store;
+      this.page = page;
+      this.lastAttributeId = lastAttributeId;
+      this.result = result;
+    }
+  }
+
   private void resetUserInfoInternal() {
-    synchronized (lock_sharedPref) {
-      SharedPreferences.Editor editor = preferences.edit();
-      editor.remove(Constants.PREF_KEYS.ANONYMOUS_ID);
-      editor.remove(Constants.PREF_KEYS.LINKING_ID);
-      editor.remove(Constants.PREF_KEYS.IS_NEW_USER);
-      editor.remove(Constants.PREF_KEYS.LAST_ACTIVE_TIME);
-      editor.remove(Constants.PREF_KEYS.LAST_SESSION_ID);
-      editor.apply();
+    synchronized (lock_state) {
+      stateFile.putText(StateFile.ANONYMOUS_ID, null);
+      stateFile.putText(StateFile.LINKING_ID, null);
+      sessionState.reset();
     }
+    //the next user starts without attributes, even if they are set to the same values
+    attributeCache.clear(Constants.ATTRIBUTE_TYPE_USER);
+    //deleted by the single writer, after any flush of the attributes of the previous user
+    awaitStorageTask(TaskManager.getInstance().executeStorageTask(new Runnable() {
+      @Override
+      public void run() {
+        databaseHelper.deleteAttributes(Constants.ATTRIBUTE_TYPE_USER);
+      }
+    }));
     checkAndTrackSession(null, false);
   }
 
@@ -1039,30 +1333,62 @@ public final class PureMetrics {
   }
 
   /**
-   * Set the last active time of the user as the current time
+   * Available logging levels for the SDK
    */
-  private void setLastActiveTime() {
-    synchronized (lock_sharedPref) {
-      preferences.edit().putLong(Constants.PREF_KEYS.LAST_ACTIVE_TIME, System.currentTimeMillis()).apply();
-    }
+  public enum LOG_LEVEL {
+    NONE, FATAL, ERROR, WARN, INFO, DEBUG, VERBOSE
   }
 
   /**
-   * Get the last time the user was actibe in the app
-   *
-   * @return The last active time of the user
+   * Storage engines for the events which are not yet uploaded
    */
-  private long getLastActiveTime() {
-    synchronized (lock_sharedPref) {
-      return preferences.getLong(Constants.PREF_KEYS.LAST_ACTIVE_TIME, 0);
-    }
+  public enum STORAGE_ENGINE {
+    /**
+     * Events are rows of the SQLite DB of the SDK
+     */
+    SQLITE,
+    /**
+     * Events are appended to memory mapped log files. Suited to apps tracking a high volume of events
+     */
+    MAPPED_LOG
   }
 
   /**
-   * Available logging levels for the SDK
+   * Transports of the uploads
    */
-  public enum LOG_LEVEL {
-    NONE, FATAL, ERROR, WARN, INFO, DEBUG, VERBOSE
+  public enum TRANSPORT {
+    /**
+     * One request at a time over a persistent HTTPS connection
+     */
+    HTTP,
+    /**
+     * Several requests in flight at a time, each over its own persistent HTTPS connection.
+     * Suited to apps uploading a large backlog of events on slow networks
+     */
+    PIPELINED
+  }
+
+  /**
+   * Policies applied when more events are pending in memory than the SDK holds
+   */
+  public enum OVERFLOW_POLICY {
+    /**
+     * Drop the oldest pending event to make space for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new event
+     */
+    DROP_NEWEST,
+    /**
+     * Block the calling thread until there is space or the timeout elapses, then drop the new event
+     */
+    BLOCK,
+    /**
+     * Write the pending events to the disk on the calling thread.
+     * Also applies to the writes of the SDK when its storage queue is full, never to uploads
+     */
+    SPILL_TO_DISK
   }
 
   /**
@@ -1111,6 +1437,244 @@ public final class PureMetrics {
       return this;
     }
 
+    /**
+     * Set the number of events which are buffered in memory before they are written to the disk.
+     * The default is {@value Constants#DEFAULT_EVENT_BATCH_SIZE}.
+     * The value specified cannot be less than or equal to 0
+     *
+     * @param batchSize The number of events written to the disk at once
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setEventBatchSize(int batchSize) {
+      if (batchSize > 0) {
+        _EVENT_BATCH_SIZE = batchSize;
+      }
+      return this;
+    }
+
+    /**
+     * Set the maximum time an event is buffered in memory before it is written to the disk.
+     * The default is {@value Constants#DEFAULT_EVENT_FLUSH_DELAY}.
+     * The value specified cannot be less than 0
+     *
+     * @param timeInMillis The flush delay to be set. Unit is milliseconds
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setEventFlushDelay(long timeInMillis) {
+      if (timeInMillis >= 0) {
+        _EVENT_FLUSH_DELAY = timeInMillis;
+      }
+      return this;
+    }
+
+    /**
+     * Set the storage engine for the events which are not yet uploaded.
+     * The default is {@link STORAGE_ENGINE#SQLITE}. Events stored by the other engine
+     * are still uploaded after switching
+     *
+     * @param engine The {@link STORAGE_ENGINE} to be used
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setStorageEngine(STORAGE_ENGINE engine) {
+      if (null != engine) {
+        _STORAGE_ENGINE = engine;
+      }
+      return this;
+    }
+
+    /**
+     * Choose where tracked events are serialized. By default only the name, the timestamp
+     * and a shallow copy of the attributes are captured on the calling thread and the JSON is
+     * built on the background writer. Disable this if nested attribute values are
+     * modified after an event is tracked.
+     *
+     * @param deferred true to serialize events on the background writer, false to serialize
+     *                 them on the calling thread
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setDeferredEventSerialization(boolean deferred) {
+      _DEFERRED_EVENT_SERIALIZATION = deferred;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of events held in memory before they are written to the disk.
+     * The default is {@value Constants#DEFAULT_MAX_PENDING_EVENTS}.
+     * The value specified cannot be less than or equal to 0
+     *
+     * @param maxPendingEvents The maximum number of events held in memory
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setMaxPendingEvents(int maxPendingEvents) {
+      if (maxPendingEvents > 0) {
+        _MAX_PENDING_EVENTS = maxPendingEvents;
+      }
+      return this;
+    }
+
+    /**
+     * Set the policy applied when more events are pending than the SDK holds in memory.
+     * The default is {@link OVERFLOW_POLICY#DROP_OLDEST}
+     *
+     * @param policy The {@link OVERFLOW_POLICY} to be applied
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setOverflowPolicy(OVERFLOW_POLICY policy) {
+      if (null != policy) {
+        _OVERFLOW_POLICY = policy;
+      }
+      return this;
+    }
+
+    /**
+     * Set the maximum time a caller is blocked with {@link OVERFLOW_POLICY#BLOCK}.
+     * The default is {@value Constants#DEFAULT_OVERFLOW_BLOCK_TIMEOUT}.
+     * The value specified cannot be less than 0
+     *
+     * @param timeInMillis The timeout to be set. Unit is milliseconds
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setOverflowBlockTimeout(long timeInMillis) {
+      if (timeInMillis >= 0) {
+        _OVERFLOW_BLOCK_TIMEOUT = timeInMillis;
+      }
+      return this;
+    }
+
+    /**
+     * Set the transport of the uploads.
+     * The default is {@link TRANSPORT#HTTP}
+     *
+     * @param transport The {@link TRANSPORT} to be used
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setTransport(TRANSPORT transport) {
+      if (null != transport) {
+        _TRANSPORT = transport;
+      }
+      return this;
+    }
+
+    /**
+     * Set the endpoint the data is sent to, e.g. a regional ingest proxy.
+     * The default is {@value Constants#UPLOAD_URL}.
+     * Invalid URLs are ignored
+     *
+     * @param endpoint The URL of the endpoint
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setEndpoint(String endpoint) {
+      try {
+        new URL(endpoint);
+        _ENDPOINT = endpoint;
+      } catch (MalformedURLException e) {
+        log(LOG_LEVEL.ERROR, "Ignoring invalid endpoint: " + endpoint, e);
+      }
+      return this;
+    }
+
+    /**
+     * Set the connect and read timeout of an upload request.
+     * The default is {@value Constants#UPLOAD_TIMEOUT}.
+     * The value specified has to be greater than 0
+     *
+     * @param timeInMillis The timeout to be set. Unit is milliseconds
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setUploadTimeout(int timeInMillis) {
+      if (timeInMillis > 0) {
+        _UPLOAD_TIMEOUT = timeInMillis;
+      }
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests in flight with {@link TRANSPORT#PIPELINED}.
+     * The default is {@value Constants#DEFAULT_MAX_INFLIGHT_UPLOADS}.
+     * The value specified has to be greater than 0
+     *
+     * @param maxInFlight The maximum number of requests in flight
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setMaxInFlightUploads(int maxInFlight) {
+      if (maxInFlight > 0) {
+        _MAX_INFLIGHT_UPLOADS = maxInFlight;
+      }
+      return this;
+    }
+
+    /**
+     * Set the number of events stored since the last sync which triggers a sync while the app is in foreground.
+     * The default is {@value Constants#DEFAULT_FLUSH_MAX_EVENTS}.
+     * The value specified cannot be less than 0, 0 disables the threshold
+     *
+     * @param maxEvents The number of events to be set
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setFlushMaxEvents(int maxEvents) {
+      if (maxEvents >= 0) {
+        _FLUSH_MAX_EVENTS = maxEvents;
+      }
+      return this;
+    }
+
+    /**
+     * Set the size of the events stored since the last sync which triggers a sync while the app is in foreground.
+     * The default is {@value Constants#DEFAULT_FLUSH_MAX_BYTES}.
+     * The value specified cannot be less than 0, 0 disables the threshold
+     *
+     * @param maxBytes The size to be set. Unit is bytes
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setFlushMaxBytes(long maxBytes) {
+      if (maxBytes >= 0) {
+        _FLUSH_MAX_BYTES = maxBytes;
+      }
+      return this;
+    }
+
+    /**
+     * Set the age of the oldest event stored since the last sync which triggers a sync while the app is in foreground.
+     * The default is {@value Constants#DEFAULT_FLUSH_MAX_AGE}.
+     * The value specified cannot be less than 0, 0 disables the threshold
+     *
+     * @param timeInMillis The age to be set. Unit is milliseconds
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setFlushMaxAge(long timeInMillis) {
+      if (timeInMillis >= 0) {
+        _FLUSH_MAX_AGE = timeInMillis;
+      }
+      return this;
+    }
+
+    /**
+     * Gzip compress the data sent to PureMetrics. This reduces the bandwidth used
+     * at the cost of a little CPU while uploading
+     *
+     * @param enable set true if you want to compress the uploaded data
+     * @return the current instance of {@link Builder}
+     */
+    public Builder enableGzipCompression(boolean enable) {
+      _GZIP_ENABLED = enable;
+      return this;
+    }
+
+    /**
+     * Set the compression level used when gzip compression is enabled.
+     * The default is {@value Constants#DEFAULT_COMPRESSION_LEVEL}.
+     * The value specified has to be between 1 (fastest) and 9 (smallest)
+     *
+     * @param level The compression level to be set
+     * @return the current instance of {@link Builder}
+     */
+    public Builder setCompressionLevel(int level) {
+      if (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION) {
+        _COMPRESSION_LEVEL = level;
+      }
+      return this;
+    }
+
     /**
      * Disable auto session tracking
      *
@@ -0,0 +1,143 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+/**
+ * The session state of the SDK, loaded from the {@link StateFile} once at init.
+ * Activity transitions only update the state in memory, it is written back when a new session
+ * starts, when a one-time flag flips and when the app goes to background.
+ */
+final class SessionState {
+
+  private final StateFile stateFile;
+  /**
+   * Current session Id, read on every tracked event
+   */
+  private volatile long sessionId;
+  private long lastActiveTime;
+  /**
+   * true if {@link #lastActiveTime} has not been written back yet
+   */
+  private boolean lastActiveTimeDirty;
+  private boolean newUser;
+  private boolean deviceInfoCollected;
+
+  SessionState(StateFile stateFile) {
+    this.stateFile = stateFile;
+    sessionId = stateFile.getLong(StateFile.LAST_SESSION_ID);
+    lastActiveTime = stateFile.getLong(StateFile.LAST_ACTIVE_TIME);
+    newUser = stateFile.getBoolean(StateFile.IS_NEW_USER, true);
+    deviceInfoCollected = stateFile.getBoolean(StateFile.DEVICEINFO_COLLECTED, false);
+  }
+
+  long getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Marks the user active and starts a new session if the user was inactive for longer than a session.
+   * Only a new session is written to the {@link StateFile}
+   * @param now             The current time
+   * @param sessionDuration The inactivity after which a new session starts
+   * @return true if a new session was started
+   */
+  synchronized boolean touch(long now, long sessionDuration) {
+    boolean newSession = (lastActiveTime + sessionDuration) < now;
+    lastActiveTime = now;
+    if (newSession) {
+      sessionId = now;
+      stateFile.putLong(StateFile.LAST_SESSION_ID, now);
+      stateFile.putLong(StateFile.LAST_ACTIVE_TIME, now);
+      lastActiveTimeDirty = false;
+    } else {
+      lastActiveTimeDirty = true;
+    }
+    return newSession;
+  }
+
+  /**
+   * Marks the user active
+   * @param now     The current time
+   * @param persist true to write the last active time back, e.g. when the app goes to background
+   */
+  synchronized void markActive(long now, boolean persist) {
+    lastActiveTime = now;
+    lastActiveTimeDirty = true;
+    if (persist) {
+      persist();
+    }
+  }
+
+  /**
+   * Writes the last active time back if it changed since it was last written
+   */
+  synchronized void persist() {
+    if (lastActiveTimeDirty) {
+      stateFile.putLong(StateFile.LAST_ACTIVE_TIME, lastActiveTime);
+      lastActiveTimeDirty = false;
+    }
+  }
+
+  /**
+   * Check if its a new user or recurring user. The user is recurring from then on
+   * @return true if it is a new user
+   */
+  synchronized boolean checkFirstTimeUser() {
+    if (!newUser) {
+      return false;
+    }
+    newUser = false;
+    stateFile.putBoolean(StateFile.IS_NEW_USER, false);
+    return true;
+  }
+
+  /**
+   * Check if the device information was collected. It counts as collected from then on
+   * @return true if the device information was collected before
+   */
+  synchronized boolean checkDeviceInfoCollected() {
+    if (deviceInfoCollected) {
+      return true;
+    }
+    deviceInfoCollected = true;
+    stateFile.putBoolean(StateFile.DEVICEINFO_COLLECTED, true);
+    return false;
+  }
+
+  /**
+   * Moves back to the state of a new user, the next activity starts a new session
+   */
+  synchronized void reset() {
+    sessionId = 0;
+    lastActiveTime = 0;
+    lastActiveTimeDirty = false;
+    newUser = true;
+    stateFile.removeBoolean(StateFile.IS_NEW_USER);
+    stateFile.putLong(StateFile.LAST_ACTIVE_TIME, 0);
+    stateFile.putLong(StateFile.LAST_SESSION_ID, 0);
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * The state the SDK retains across launches, in a small memory-mapped file with a fixed layout.
+ * <p>
+ * Every field has a fixed offset and is updated in place, nothing else in the file is rewritten.
+ * The mapped page is written back by the OS, so an update never blocks on the disk the way
+ * {@link SharedPreferences#edit()} does when an activity is paused or stopped.
+ * Numbers and flags are single aligned writes. A text field is its CRC32, its length and its
+ * UTF-8 bytes in a slot of {@link #TEXT_CAPACITY} bytes, a field whose CRC does not match is read as unset.
+ * <p>
+ * The file is created from the {@link Constants#SHARED_PREF_NAME} preferences the first time it is
+ * opened, and the magic number is written last so that an interrupted migration is started over.
+ * If the file can not be mapped the state is kept in memory for the lifetime of the process.
+ */
+final class StateFile {
+
+  private static final int MAGIC = 0x504D5354;
+  private static final int FORMAT_VERSION = 1;
+  private static final int OFFSET_VERSION = 4;
+  /**
+   * Maximum length of a text field in UTF-8 bytes
+   */
+  static final int TEXT_CAPACITY = 256;
+  /**
+   * Text slot: CRC32 of length and bytes, length or -1 if unset, the bytes
+   */
+  private static final int TEXT_SLOT_SIZE = 8 + TEXT_CAPACITY;
+  /**
+   * Long fields, 0 when unset
+   */
+  static final int LAST_SESSION_ID = 8;
+  static final int LAST_ACTIVE_TIME = 16;
+  /**
+   * Flag fields, a byte each
+   */
+  static final int IS_NEW_USER = 24;
+  static final int DEVICEINFO_COLLECTED = 25;
+  static final int OLDUSER = 26;
+  /**
+   * Text fields, a slot of {@link #TEXT_SLOT_SIZE} bytes each
+   */
+  static final int DEVICE_ID = 32;
+  static final int ANONYMOUS_ID = DEVICE_ID + TEXT_SLOT_SIZE;
+  static final int LINKING_ID = ANONYMOUS_ID + TEXT_SLOT_SIZE;
+  /**
+   * Long fields of the {@link UploadScheduler}, 0 when unset
+   */
+  static final int NEXT_UPLOAD_ATTEMPT = LINKING_ID + TEXT_SLOT_SIZE;
+  static final int UPLOAD_FAILURES = NEXT_UPLOAD_ATTEMPT + 8;
+  /**
+   * The space after the last field is reserved for new fields
+   */
+  private static final int FILE_SIZE = 1024;
+
+  private static final byte FLAG_UNSET = 0;
+  private static final byte FLAG_FALSE = 1;
+  private static final byte FLAG_TRUE = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buffer;
+
+  private StateFile(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Opens the state file, creating it from the legacy preferences if it does not exist yet
+   *
+   * @param file   The state file
+   * @param legacy The {@link SharedPreferences} the state was kept in before, can be null
+   * @return the {@link StateFile}, kept in memory only if the file can not be mapped
+   */
+  static StateFile open(File file, SharedPreferences legacy) {
+    StateFile state;
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(Math.max(randomAccessFile.length(), FILE_SIZE));
+        //the mapping stays valid after the file is closed
+        state = new StateFile(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+      } finally {
+        randomAccessFile.close();
+      }
+    } catch (Throwable e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Could not map the state file, state is kept in memory", e);
+      state = new StateFile(ByteBuffer.allocate(FILE_SIZE));
+    }
+    state.initialize(legacy);
+    return state;
+  }
+
+  private synchronized void initialize(SharedPreferences legacy) {
+    if (buffer.getInt(0) == MAGIC && buffer.getInt(OFFSET_VERSION) == FORMAT_VERSION) {
+      return;
+    }
+    for (int i = 0; i < FILE_SIZE; i++) {
+      buffer.put(i, (byte) 0);
+    }
+    putText(DEVICE_ID, null);
+    putText(ANONYMOUS_ID, null);
+    putText(LINKING_ID, null);
+    if (null != legacy) {
+      migrate(legacy);
+    }
+    buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+    //the magic number is written last, a file without it is initialized again
+    buffer.putInt(0, MAGIC);
+    force();
+    if (null != legacy && buffer instanceof MappedByteBuffer) {
+      legacy.edit().clear().apply();
+    }
+  }
+
+  private void migrate(SharedPreferences legacy) {
+    try {
+      putText(DEVICE_ID, legacy.getString(Constants.PREF_KEYS.DEVICE_ID, null));
+      putText(ANONYMOUS_ID, legacy.getString(Constants.PREF_KEYS.ANONYMOUS_ID, null));
+      putText(LINKING_ID, legacy.getString(Constants.PREF_KEYS.LINKING_ID, null));
+      putLong(LAST_SESSION_ID, legacy.getLong(Constants.PREF_KEYS.LAST_SESSION_ID, 0));
+      putLong(LAST_ACTIVE_TIME, legacy.getLong(Constants.PREF_KEYS.LAST_ACTIVE_TIME, 0));
+      migrateFlag(legacy, Constants.PREF_KEYS.IS_NEW_USER, IS_NEW_USER);
+      migrateFlag(legacy, Constants.PREF_KEYS.DEVICEINFO_COLLECTED, DEVICEINFO_COLLECTED);
+      migrateFlag(legacy, Constants.PREF_KEYS.OLDUSER, OLDUSER);
+    } catch (Throwable e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Could not migrate the preferences", e);
+    }
+  }
+
+  private void migrateFlag(SharedPreferences legacy, String key, int field) {
+    if (legacy.contains(key)) {
+      putBoolean(field, legacy.getBoolean(key, false));
+    }
+  }
+
+  synchronized long getLong(int field) {
+    return buffer.getLong(field);
+  }
+
+  synchronized void putLong(int field, long value) {
+    buffer.putLong(field, value);
+  }
+
+  synchronized boolean getBoolean(int field, boolean defValue) {
+    byte flag = buffer.get(field);
+    return flag == FLAG_UNSET ? defValue : flag == FLAG_TRUE;
+  }
+
+  synchronized void putBoolean(int field, boolean value) {
+    buffer.put(field, value ? FLAG_TRUE : FLAG_FALSE);
+  }
+
+  /**
+   * Resets a flag to its default value
+   */
+  synchronized void removeBoolean(int field) {
+    buffer.put(field, FLAG_UNSET);
+  }
+
+  /**
+   * @return the text or null if it is unset or damaged
+   */
+  synchronized String getText(int field) {
+    int length = buffer.getInt(field + 4);
+    if (length < 0 || length > TEXT_CAPACITY) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(field + 8 + i);
+    }
+    if ((int) crc(length, bytes) != buffer.getInt(field)) {
+      return null;
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Stores a text, or unsets it if it is null.
+   * A text longer than {@link #TEXT_CAPACITY} bytes is not stored and the field is unset
+   */
+  synchronized void putText(int field, String value) {
+    byte[] bytes = null == value ? new byte[0] : value.getBytes(UTF_8);
+    int length = null == value ? -1 : bytes.length;
+    if (bytes.length > TEXT_CAPACITY) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "Value too long to be stored: " + bytes.length + " bytes");
+      bytes = new byte[0];
+      length = -1;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      buffer.put(field + 8 + i, bytes[i]);
+    }
+    buffer.putInt(field + 4, length);
+    buffer.putInt(field, (int) crc(length, bytes));
+  }
+
+  /**
+   * Writes the state to the disk. Updates are written back by the OS anyway,
+   * this is only needed to survive the device shutting down
+   */
+  synchronized void force() {
+    if (buffer instanceof MappedByteBuffer) {
+      try {
+        ((MappedByteBuffer) buffer).force();
+      } catch (Throwable e) {
+        PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "force", e);
+      }
+    }
+  }
+
+  private static long crc(int length, byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(length >>> 24);
+    crc.update(length >>> 16);
+    crc.update(length >>> 8);
+    crc.update(length);
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinates the triggers of a sync so that only one upload runs at a time.
+ * <p>
+ * A trigger moves an idle coordinator to {@link #SCHEDULED} and the caller submits the sync.
+ * Triggers arriving while the sync is scheduled are coalesced into it, triggers arriving while it is
+ * {@link #UPLOADING} are coalesced into one follow-up run which starts when the upload finishes.
+ * A sync which ends with a pending retry leaves the coordinator in {@link #BACKOFF}, any trigger
+ * schedules a sync again. All transitions are compare-and-set on a single state.
+ */
+final class SyncCoordinator {
+
+  static final int IDLE = 0;
+  static final int SCHEDULED = 1;
+  static final int UPLOADING = 2;
+  static final int BACKOFF = 3;
+  /**
+   * Set along with {@link #UPLOADING} when a follow-up run was requested during the upload
+   */
+  private static final int FOLLOW_UP = 4;
+
+  private final AtomicInteger state = new AtomicInteger(IDLE);
+  private final long staleTimeout;
+  private volatile long scheduledAt;
+
+  /**
+   * Constructor
+   *
+   * @param staleTimeout Time in milliseconds after which a scheduled sync which did not start,
+   *                     because its task was dropped, is scheduled again
+   */
+  SyncCoordinator(long staleTimeout) {
+    this.staleTimeout = staleTimeout;
+  }
+
+  /**
+   * Requests a sync
+   *
+   * @param now The current time
+   * @return true if the caller has to submit the sync, false if the request is coalesced
+   * into a sync which is scheduled or running
+   */
+  boolean request(long now) {
+    while (true) {
+      int current = state.get();
+      switch (current) {
+        case IDLE:
+        case BACKOFF:
+          if (state.compareAndSet(current, SCHEDULED)) {
+            scheduledAt = now;
+            return true;
+          }
+          break;
+        case SCHEDULED:
+          if (now - scheduledAt <= staleTimeout) {
+            return false;
+          }
+          //only one of the submitted syncs gets to start
+          scheduledAt = now;
+          return true;
+        case UPLOADING:
+          if (state.compareAndSet(UPLOADING, UPLOADING | FOLLOW_UP)) {
+            return false;
+          }
+          break;
+        default:
+          return false;
+      }
+    }
+  }
+
+  /**
+   * Called by a submitted sync before it uploads
+   *
+   * @return true if the sync may run, false if another one already started
+   */
+  boolean begin() {
+    return state.compareAndSet(SCHEDULED, UPLOADING);
+  }
+
+  /**
+   * Called by a running sync once it is done
+   *
+   * @param backoff true if the next attempt is held back after a failed upload
+   * @return true if a follow-up run was requested and the caller has to sync again
+   */
+  boolean finish(boolean backoff) {
+    while (true) {
+      if (state.compareAndSet(UPLOADING | FOLLOW_UP, UPLOADING)) {
+        return true;
+      }
+      if (state.compareAndSet(UPLOADING, backoff ? BACKOFF : IDLE)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return one of {@link #IDLE}, {@link #SCHEDULED}, {@link #UPLOADING} or {@link #BACKOFF}
+   */
+  int getState() {
+    return state.get() & ~FOLLOW_UP;
+  }
+}
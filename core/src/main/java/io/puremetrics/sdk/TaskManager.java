@@ -26,34 +26,132 @@
  */
 package io.puremetrics.sdk;
 
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runs the background work of the SDK on two lanes. Storage work runs in FIFO order on a
+ * single writer thread so that writes never contend with each other for the DB lock,
+ * everything else (payload building, uploads, device info collection) runs on a small pool.
+ * <p>
+ * The queues are bounded. The flushes and syncs of the SDK are coalesced, so only a few of them are
+ * ever queued, and they are never dropped: a task which does not fit is held until its lane has room.
+ * Only the tasks submitted with {@link #tryExecuteStorageTask(Runnable)} are subject to the
+ * {@link PureMetrics.OVERFLOW_POLICY}, and only storage work is ever spilled to the calling thread.
+ */
 final class TaskManager {
 
   private static TaskManager _INSTANCE;
-  // A queue of Runnables
+  // Queues of Runnables
+  private final BlockingQueue<Runnable> storageQueue;
   private final BlockingQueue<Runnable> workerQueue;
+  private ThreadPoolExecutor storageLane;
   private ThreadPoolExecutor workerPool;
+  private final AtomicLong droppedTasks = new AtomicLong();
+  private final AtomicLong spilledTasks = new AtomicLong();
+  /**
+   * Tasks which did not fit in the queue of their lane and must not be dropped
+   */
+  private final Queue<Runnable> storageBacklog = new ConcurrentLinkedQueue<>();
+  private final Queue<Runnable> workerBacklog = new ConcurrentLinkedQueue<>();
+  private volatile PureMetrics.OVERFLOW_POLICY overflowPolicy = Constants.DEFAULT_OVERFLOW_POLICY;
+  private volatile long blockTimeout = Constants.DEFAULT_OVERFLOW_BLOCK_TIMEOUT;
+
+  /**
+   * Applies the {@link PureMetrics.OVERFLOW_POLICY} to a droppable task once the queue is full,
+   * every other task is spilled or held in the backlog of its lane
+   */
+  private final RejectedExecutionHandler overflowHandler = new RejectedExecutionHandler() {
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        return;
+      }
+      boolean isStorage = executor == storageLane;
+      if (isStorage && overflowPolicy == PureMetrics.OVERFLOW_POLICY.SPILL_TO_DISK) {
+        //run the write on the calling thread so that its data is written instead of being held
+        spilledTasks.incrementAndGet();
+        task.run();
+        return;
+      }
+      if (!(task instanceof DroppableTask)) {
+        Queue<Runnable> backlog = isStorage ? storageBacklog : workerBacklog;
+        backlog.add(task);
+        drainBacklog(executor, backlog);
+        return;
+      }
+      switch (overflowPolicy) {
+        case DROP_OLDEST:
+          if (removeOldestDroppable(executor.getQueue())) {
+            droppedTasks.incrementAndGet();
+            if (executor.getQueue().offer(task)) {
+              return;
+            }
+          }
+          break;
+        case BLOCK:
+          try {
+            if (executor.getQueue().offer(task, blockTimeout, TimeUnit.MILLISECONDS)) {
+              return;
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          break;
+        default:
+          break;
+      }
+      droppedTasks.incrementAndGet();
+    }
+  };
 
   private TaskManager() {
-    // Instantiates the queue of Runnables as a LinkedBlockingQueue
-    workerQueue = new LinkedBlockingQueue<>();
+    // Instantiates the queues of Runnables as bounded ArrayBlockingQueues
+    storageQueue = new ArrayBlockingQueue<>(Constants.TASK_QUEUE_CAPACITY);
+    workerQueue = new ArrayBlockingQueue<>(Constants.TASK_QUEUE_CAPACITY);
     //Sets the amount of time an idle thread waits before terminating
-    final int KEEP_ALIVE_TIME = 1;
-    final int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
+    final int KEEP_ALIVE_TIME = Constants.TASK_THREAD_KEEP_ALIVE_SECONDS;
+    final int NUMBER_OF_WORKERS = Math.max(1,
+            Math.min(Constants.MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors()));
     // Sets the Time Unit to seconds
     TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+    // Creates the single writer, a single thread always drains its queue in submission order
+    storageLane = new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_TIME,
+            KEEP_ALIVE_TIME_UNIT,
+            storageQueue,
+            overflowHandler) {
+      @Override
+      protected void afterExecute(Runnable task, Throwable error) {
+        drainBacklog(this, storageBacklog);
+      }
+    };
+    storageLane.allowCoreThreadTimeOut(true);
     // Creates a thread pool manager
     workerPool = new ThreadPoolExecutor(
-            NUMBER_OF_CORES,       // Initial pool size
-            NUMBER_OF_CORES,       // Max pool size
+            NUMBER_OF_WORKERS,       // Initial pool size
+            NUMBER_OF_WORKERS,       // Max pool size
             KEEP_ALIVE_TIME,
             KEEP_ALIVE_TIME_UNIT,
-            workerQueue);
-    PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Initialized workers: " + NUMBER_OF_CORES);
+            workerQueue,
+            overflowHandler) {
+      @Override
+      protected void afterExecute(Runnable task, Throwable error) {
+        drainBacklog(this, workerBacklog);
+      }
+    };
+    workerPool.allowCoreThreadTimeOut(true);
+    PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Initialized workers: " + NUMBER_OF_WORKERS);
   }
 
   synchronized static TaskManager getInstance() {
@@ -64,7 +162,18 @@ final class TaskManager {
   }
 
   /**
-   * Executes a task on the internal {@link ThreadPoolExecutor}
+   * Set the policy applied when the queue of tasks is full
+   * @param overflowPolicy The {@link PureMetrics.OVERFLOW_POLICY} to be applied
+   * @param blockTimeout   Time in milliseconds a caller waits with {@link PureMetrics.OVERFLOW_POLICY#BLOCK}
+   */
+  void setOverflowPolicy(PureMetrics.OVERFLOW_POLICY overflowPolicy, long blockTimeout) {
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeout = blockTimeout;
+  }
+
+  /**
+   * Executes a task on the internal worker pool. Used for work which does not write to the DB.
+   * The task is never dropped
    * @param task An instance of {@link Runnable} which represents the task
    */
   void executeTask(Runnable task) {
@@ -73,7 +182,77 @@ final class TaskManager {
     } catch (Throwable e) {
       PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "TaskManager:executeTask", e);
     }
+  }
 
+  /**
+   * Executes a task on the single writer lane. Tasks run one at a time in the order they were submitted,
+   * a task held back because the queue was full runs after the tasks queued in the meantime.
+   * The task is never dropped
+   * @param task An instance of {@link Runnable} which writes to the DB
+   * @return the {@link Future} of the task, null if it could not be submitted
+   */
+  Future<?> executeStorageTask(Runnable task) {
+    try {
+      return storageLane.submit(task);
+    } catch (Throwable e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "TaskManager:executeStorageTask", e);
+    }
+    return null;
+  }
+
+  /**
+   * Executes a task on the single writer lane, it is subject to the {@link PureMetrics.OVERFLOW_POLICY}
+   * once the queue is full. Used for work which may be skipped
+   * @param task An instance of {@link Runnable} which writes to the DB
+   */
+  void tryExecuteStorageTask(Runnable task) {
+    try {
+      storageLane.execute(new DroppableTask(task));
+    } catch (Throwable e) {
+      PureMetrics.log(PureMetrics.LOG_LEVEL.ERROR, "TaskManager:tryExecuteStorageTask", e);
+    }
+  }
+
+  /**
+   * Moves the held back tasks of a lane to its queue while it has room
+   */
+  private static void drainBacklog(ThreadPoolExecutor executor, Queue<Runnable> backlog) {
+    while (executor.getQueue().remainingCapacity() > 0 && !executor.isShutdown()) {
+      Runnable task = backlog.poll();
+      if (null == task) {
+        return;
+      }
+      executor.execute(task);
+    }
+  }
+
+  /**
+   * Removes the oldest droppable task from a queue
+   * @return true if a task was removed
+   */
+  private static boolean removeOldestDroppable(BlockingQueue<Runnable> queue) {
+    Iterator<Runnable> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() instanceof DroppableTask) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of droppable tasks dropped because the queue was full
+   */
+  long getDroppedTasks() {
+    return droppedTasks.get();
+  }
+
+  /**
+   * @return the number of storage tasks run on the calling thread because the queue was full
+   */
+  long getSpilledTasks() {
+    return spilledTasks.get();
   }
 
   /**
@@ -83,6 +262,7 @@ final class TaskManager {
     PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Received Shutdown request");
     printManagerStatus();
     workerPool.shutdown();
+    storageLane.shutdown();
   }
 
   /**
@@ -90,10 +270,29 @@ final class TaskManager {
    */
   private void printManagerStatus() {
     PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "Tasks in queue: " + workerQueue.size()
-            + " Active Threads: " + workerPool.getActiveCount());
+            + " Storage tasks in queue: " + storageQueue.size()
+            + " Active Threads: " + (workerPool.getActiveCount() + storageLane.getActiveCount())
+            + " Dropped: " + droppedTasks.get() + " Spilled: " + spilledTasks.get());
   }
 
   void warmup() {
+    storageLane.prestartCoreThread();
     workerPool.prestartCoreThread();
   }
+
+  /**
+   * A task which may be dropped by the {@link PureMetrics.OVERFLOW_POLICY}
+   */
+  private static final class DroppableTask implements Runnable {
+    private final Runnable task;
+
+    DroppableTask(Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+  }
 }
@@ -0,0 +1,55 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.util.concurrent.Future;
+
+/**
+ * Sends upload payloads to PureMetrics.
+ * The implementation is selected with {@link PureMetrics.Builder#setTransport(PureMetrics.TRANSPORT)}
+ */
+interface Transport {
+
+  /**
+   * Outcome of a request which failed without a response
+   */
+  int NO_RESPONSE = -1;
+
+  /**
+   * Sends a payload. Depending on the implementation the payload is sent before this returns,
+   * or later while further payloads are prepared
+   *
+   * @param payload The serialized request body
+   * @return the outcome of the request, the HTTP status or {@link #NO_RESPONSE}
+   */
+  Future<Integer> send(Payload payload);
+
+  /**
+   * @return the maximum number of payloads which should be sent and not yet completed at a time
+   */
+  int getMaxInFlight();
+}
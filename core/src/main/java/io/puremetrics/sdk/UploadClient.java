@@ -0,0 +1,179 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Posts upload payloads to the PureMetrics endpoint over persistent connections.
+ * <p>
+ * {@link HttpURLConnection} keeps a connection alive in its pool if the request does not ask
+ * for it to be closed and the response is read to the end, and it only hands a pooled HTTPS
+ * connection to a request using the same {@link SSLSocketFactory}. So every request of a
+ * client uses one factory and drains its response, and the chunks of a sync as well as
+ * the 412 retries go over a single TCP connection with a single TLS handshake.
+ * The factory also holds the TLS session cache, so a new connection resumes the session.
+ */
+final class UploadClient {
+
+  private final URL endpoint;
+  private final int timeout;
+  private final SSLSocketFactory sslSocketFactory;
+  private final HostnameVerifier hostnameVerifier;
+  private final Random random = new Random();
+
+  /**
+   * Constructor
+   *
+   * @param endpoint         The URL payloads are posted to
+   * @param timeout          Connect and read timeout in milliseconds
+   * @param sslSocketFactory The {@link SSLSocketFactory} of the HTTPS connections
+   * @param hostnameVerifier The {@link HostnameVerifier} of the HTTPS connections, null for the default one
+   */
+  UploadClient(URL endpoint, int timeout, SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) {
+    this.endpoint = endpoint;
+    this.timeout = timeout;
+    this.sslSocketFactory = sslSocketFactory;
+    this.hostnameVerifier = hostnameVerifier;
+  }
+
+  /**
+   * Creates a client for an endpoint using the default TLS configuration
+   *
+   * @param endpoint The URL payloads are posted to
+   * @param timeout  Connect and read timeout in milliseconds
+   * @return the {@link UploadClient}
+   * @throws IOException if the URL is not valid
+   */
+  static UploadClient create(String endpoint, int timeout) throws IOException {
+    return new UploadClient(new URL(endpoint), timeout, HttpsURLConnection.getDefaultSSLSocketFactory(), null);
+  }
+
+  /**
+   * Uploads a payload, retrying it up to {@link Constants#MAX_PRECONDITION_RETRIES} times
+   * if the server asks for it with a 412. The retries back off from {@link Constants#PRECONDITION_RETRY_DELAY}
+   *
+   * @param authBytes        Authorization bytes for Http BASIC Auth
+   * @param payload          The serialized request body
+   * @param isDebug          true if this is a debug build
+   * @param gzip             true if the request body should be gzip compressed
+   * @param compressionLevel The compression level, 1-9 or -1 for the default level
+   * @return the HTTP status of the last response
+   * @throws IOException if the request failed
+   */
+  int upload(String authBytes, Payload payload, boolean isDebug, boolean gzip,
+             int compressionLevel) throws IOException {
+    for (int retryCount = 0; ; retryCount++) {
+      int responseCode = post(authBytes, payload, isDebug, gzip, compressionLevel);
+      if (responseCode != 412 || retryCount >= Constants.MAX_PRECONDITION_RETRIES) {
+        return responseCode;
+      }
+      try {
+        Thread.sleep(UploadScheduler.backoffDelay(retryCount + 1, Constants.PRECONDITION_RETRY_DELAY,
+                Constants.UPLOAD_RETRY_MAX_DELAY, random));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return responseCode;
+      }
+    }
+  }
+
+  /**
+   * @param responseCode The HTTP status of a response
+   * @return true if the payload was accepted by the server
+   */
+  static boolean isAccepted(int responseCode) {
+    return responseCode == 200 || responseCode == 204;
+  }
+
+  /**
+   * Posts a payload once
+   *
+   * @return the response code
+   */
+  private int post(String authBytes, Payload payload, boolean isDebug, boolean gzip,
+                   int compressionLevel) throws IOException {
+    HttpURLConnection urlConnection = (HttpURLConnection) endpoint.openConnection();
+    if (urlConnection instanceof HttpsURLConnection) {
+      HttpsURLConnection httpsConnection = (HttpsURLConnection) urlConnection;
+      httpsConnection.setSSLSocketFactory(sslSocketFactory);
+      if (null != hostnameVerifier) {
+        httpsConnection.setHostnameVerifier(hostnameVerifier);
+      }
+    }
+    urlConnection.setRequestProperty(Constants.Headers.AUTHORIZATION, Constants.Headers.BASIC_AUTH_PREFIX + authBytes);
+    // The checksum is always of the uncompressed JSON body
+    urlConnection.setRequestProperty(Constants.Headers.CONTENTMD5, payload.checksum);
+    urlConnection.setRequestProperty(Constants.Headers.CONTENT_TYPE, Constants.Headers.VALUE_APPLICATION_JSON);
+    if (isDebug) {
+      urlConnection.setRequestProperty(Constants.Headers.DEBUG, Constants.Headers.VALUE_DEBUG);
+    }
+    urlConnection.setRequestMethod(Constants.REQUEST_METHOD_POST);
+
+    urlConnection.setDoOutput(true);
+    urlConnection.setUseCaches(false);
+    urlConnection.setConnectTimeout(timeout);
+    urlConnection.setReadTimeout(timeout);
+    if (gzip) {
+      // compressed size is not known upfront, the body is streamed as it is compressed
+      urlConnection.setRequestProperty(Constants.Headers.CONTENT_ENCODING, Constants.Headers.VALUE_GZIP);
+      urlConnection.setChunkedStreamingMode(0);
+    } else {
+      urlConnection.setFixedLengthStreamingMode(payload.length);
+    }
+
+    Utils.writeBody(urlConnection.getOutputStream(), payload.body, payload.length, gzip, compressionLevel);
+    int responseCode = urlConnection.getResponseCode();
+    PureMetrics.logAPIResponse("Upload API", responseCode, null, urlConnection.getResponseMessage());
+    // the connection is only returned to the pool once the response is consumed,
+    // disconnect() would close the socket
+    drain(responseCode < 400 ? urlConnection.getInputStream() : urlConnection.getErrorStream());
+    return responseCode;
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    if (null == in) {
+      return;
+    }
+    try {
+      byte[] buffer = new byte[512];
+      while (in.read(buffer) != -1) {
+        //discard
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import java.util.Random;
+
+/**
+ * Decides when a failed upload is attempted again.
+ * <p>
+ * Every failed sync doubles the delay before the next attempt, from
+ * {@link Constants#UPLOAD_RETRY_BASE_DELAY} up to {@link Constants#UPLOAD_RETRY_MAX_DELAY},
+ * and a random part of up to half of it spreads out the devices which failed at the same time.
+ * Transient failures, like 5xx responses or a dropped connection, are retried on a timer for up to
+ * {@link Constants#MAX_UPLOAD_RETRIES} consecutive failures, after that only connectivity changes and
+ * the app going to background trigger a sync. Other failures wait for the longest delay.
+ * A sync requested before the next attempt time is skipped. The failures and the next attempt time
+ * are kept in the {@link StateFile}, so the backoff holds across launches.
+ */
+final class UploadScheduler {
+
+  private final StateFile stateFile;
+  private final Random random;
+
+  /**
+   * Constructor
+   *
+   * @param stateFile The {@link StateFile} the backoff is kept in
+   * @param random    The source of the jitter
+   */
+  UploadScheduler(StateFile stateFile, Random random) {
+    this.stateFile = stateFile;
+    this.random = random;
+  }
+
+  /**
+   * @param now The current time
+   * @return true if an upload may be attempted
+   */
+  synchronized boolean isDue(long now) {
+    long nextAttemptTime = stateFile.getLong(StateFile.NEXT_UPLOAD_ATTEMPT);
+    //a next attempt further away than the longest delay is left over from a clock change
+    return now >= nextAttemptTime || nextAttemptTime - now > Constants.UPLOAD_RETRY_MAX_DELAY;
+  }
+
+  /**
+   * @return the time of the next attempt, 0 if an upload may be attempted any time
+   */
+  synchronized long getNextAttemptTime() {
+    return stateFile.getLong(StateFile.NEXT_UPLOAD_ATTEMPT);
+  }
+
+  /**
+   * Records that the server accepted an upload, the backoff starts over
+   */
+  synchronized void onSuccess() {
+    if (stateFile.getLong(StateFile.UPLOAD_FAILURES) != 0) {
+      stateFile.putLong(StateFile.UPLOAD_FAILURES, 0);
+    }
+    if (stateFile.getLong(StateFile.NEXT_UPLOAD_ATTEMPT) != 0) {
+      stateFile.putLong(StateFile.NEXT_UPLOAD_ATTEMPT, 0);
+    }
+  }
+
+  /**
+   * Records a failed upload and sets the time of the next attempt
+   *
+   * @param responseCode The HTTP status of the failed request, {@link Transport#NO_RESPONSE} if there was none
+   * @param now          The current time
+   * @return the delay after which the upload should be retried,
+   * -1 if it is not retried on a timer
+   */
+  synchronized long onFailure(int responseCode, long now) {
+    long failures = stateFile.getLong(StateFile.UPLOAD_FAILURES) + 1;
+    stateFile.putLong(StateFile.UPLOAD_FAILURES, failures);
+    boolean isTransient = isTransient(responseCode);
+    long delay = isTransient
+            ? backoffDelay(failures, Constants.UPLOAD_RETRY_BASE_DELAY, Constants.UPLOAD_RETRY_MAX_DELAY, random)
+            : backoffDelay(1, Constants.UPLOAD_RETRY_MAX_DELAY, Constants.UPLOAD_RETRY_MAX_DELAY, random);
+    stateFile.putLong(StateFile.NEXT_UPLOAD_ATTEMPT, now + delay);
+    return isTransient && failures <= Constants.MAX_UPLOAD_RETRIES ? delay : -1;
+  }
+
+  /**
+   * @param responseCode The HTTP status of the failed request, {@link Transport#NO_RESPONSE} if there was none
+   * @return true if the request may succeed when it is sent again
+   */
+  static boolean isTransient(int responseCode) {
+    return responseCode == Transport.NO_RESPONSE
+            || responseCode == 408
+            || responseCode == 412
+            || responseCode == 429
+            || responseCode >= 500;
+  }
+
+  /**
+   * Exponential backoff with jitter, the delay is between half and all of the exponential delay
+   *
+   * @param attempt   The number of the attempt, starting at 1
+   * @param baseDelay The delay of the first attempt in milliseconds
+   * @param maxDelay  The maximum delay in milliseconds
+   * @param random    The source of the jitter
+   * @return the delay in milliseconds
+   */
+  static long backoffDelay(long attempt, long baseDelay, long maxDelay, Random random) {
+    long delay = maxDelay;
+    if (attempt <= 31 && (baseDelay << (attempt - 1)) < maxDelay) {
+      delay = baseDelay << (attempt - 1);
+    }
+    long half = delay / 2;
+    return delay - half + (long) (random.nextDouble() * (half + 1));
+  }
+}
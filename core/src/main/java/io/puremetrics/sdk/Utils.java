@@ -45,14 +45,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.URL;
-import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.zip.GZIPOutputStream;
 
 final class Utils {
 
@@ -148,70 +145,31 @@ final class Utils {
     return Constants.PREFIX.ID_RANDOM + UUID.randomUUID().toString() + "-" + System.currentTimeMillis();
   }
 
-  static boolean uploadData(String authBytes, final String data, boolean isDebug) {
-
-    try {
-      if (null == data) {
-        return true;
-      }
-
-      // MessageDigest.getInstance(String) is not threadsafe on Android.
-      // See https://code.google.com/p/android/issues/detail?id=37937
-      // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
-      // This implementation does not throw NoSuchAlgorithm exceptions.
-      MessageDigest messageDigest = new MD5();
-      byte[] undigested = data.getBytes("UTF-8");
-      byte[] digestedData = messageDigest.digest(undigested);
-
-      // Create Hex String
-      StringBuilder hexString = new StringBuilder();
-      for (byte aMessageDigest : digestedData) {
-        String h = Integer.toHexString(0xFF & aMessageDigest);
-        while (h.length() < 2)
-          h = "0" + h;
-        hexString.append(h);
-      }
-      String checksumString = hexString.toString();
-      PureMetrics.log(PureMetrics.LOG_LEVEL.DEBUG, "RequestBody: " + data + " | Checksum: " + checksumString + " | " + authBytes);
-      return uploadDataInternal(authBytes, checksumString, undigested, 0, isDebug);
-    } catch (Throwable e) {
-      PureMetrics.log(PureMetrics.LOG_LEVEL.FATAL, "Failed to upload data", e);
-    }
-    return false;
-  }
-
-  private static boolean uploadDataInternal(String authBytes, String checksumString, byte[] data, int retryCount, boolean isDebug) throws IOException {
-    boolean result = false;
-    URL url = new URL("https://api.puremetrics.io/v1/track");
-    HttpsURLConnection urlConnection = (HttpsURLConnection) url.openConnection();
-    urlConnection.setRequestProperty(Constants.Headers.AUTHORIZATION, Constants.Headers.BASIC_AUTH_PREFIX + authBytes);
-    urlConnection.setRequestProperty(Constants.Headers.CONTENTMD5, checksumString);
-    urlConnection.setRequestProperty(Constants.Headers.CONTENT_TYPE, Constants.Headers.VALUE_APPLICATION_JSON);
-    urlConnection.setRequestProperty(Constants.Headers.CONNECTION, Constants.Headers.CLOSE);
-    if (isDebug) {
-      urlConnection.setRequestProperty(Constants.Headers.DEBUG, Constants.Headers.VALUE_DEBUG);
+  /**
+   * Writes the request body to the output stream and closes it
+   *
+   * @param outputStream     The {@link OutputStream} of the connection
+   * @param data             Buffer holding the request body
+   * @param length           Length of the request body in the buffer
+   * @param gzip             true if the body should be gzip compressed while it is written
+   * @param compressionLevel The compression level, 1-9 or -1 for the default level
+   * @throws IOException if the body could not be written
+   */
+  static void writeBody(OutputStream outputStream, byte[] data, int length, boolean gzip,
+                        final int compressionLevel) throws IOException {
+    OutputStream out = outputStream;
+    if (gzip) {
+      out = new GZIPOutputStream(outputStream, Constants.GZIP_BUFFER_SIZE) {
+        {
+          def.setLevel(compressionLevel);
+        }
+      };
     }
-    urlConnection.setRequestMethod(Constants.REQUEST_METHOD_POST);
-
-    urlConnection.setDoOutput(true);
-    urlConnection.setUseCaches(false);
-    urlConnection.setConnectTimeout(13000);
-    urlConnection.setReadTimeout(13000);
-
-    OutputStream outputStream = urlConnection.getOutputStream();
-    outputStream.write(data);
-    int responseCode = urlConnection.getResponseCode();
-    String responseMessage = urlConnection.getResponseMessage();
-    if (responseCode == 200 || responseCode == 204) {
-      PureMetrics.logAPIResponse("Upload API", responseCode, null, responseMessage);
-      return true;
-    } else if (responseCode == 412) {
-      PureMetrics.logAPIResponse("Upload API", responseCode, null, responseMessage);
-      if (retryCount < 2) {
-        result = uploadDataInternal(authBytes, checksumString, data, ++retryCount, isDebug);
-      }
+    try {
+      out.write(data, 0, length);
+    } finally {
+      out.close();
     }
-    return result;
   }
 
   static void trackAdvertisementIdIfPossible(Context appContext) {
@@ -0,0 +1,231 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads the attributes selected by the statements of {@link DBHelper} to a local HTTP stand-in
+ * for the PureMetrics endpoint, and acknowledges them the way the sync does.
+ * The statements run through JDBC, since the Android SQLite bindings do not run on the JVM.
+ */
+public class AttributeDeltaTest {
+
+  private HttpServer server;
+  private Connection connection;
+  private volatile int responseCode = 204;
+  private volatile JSONObject received;
+
+  @Before
+  public void setUp() throws Exception {
+    connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    connection.createStatement().execute(DBHelper.CREATE_TABLE_PROPERTIES);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/v1/track", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        received = new JSONObject(new String(TestUtils.readFully(exchange.getRequestBody()), "UTF-8"));
+        exchange.sendResponseHeaders(responseCode, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop(0);
+    connection.close();
+  }
+
+  @Test
+  public void acknowledgedAttributesAreNotSentAgain() throws Exception {
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"free\"");
+    put(Constants.ATTRIBUTE_TYPE_DEVICE, "model", "\"Pixel\"");
+    assertTrue(sync());
+    assertEquals("free", received.getJSONObject(Constants.RequestAttributes.UA).getString("plan"));
+    assertEquals("Pixel", received.getJSONObject(Constants.RequestAttributes.DA).getString("model"));
+
+    received = null;
+    assertFalse("nothing changed, nothing to send", sync());
+    assertNull(received);
+  }
+
+  @Test
+  public void onlyChangedAttributesAreSent() throws Exception {
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"free\"");
+    put(Constants.ATTRIBUTE_TYPE_USER, "age", "30");
+    put(Constants.ATTRIBUTE_TYPE_DEVICE, "model", "\"Pixel\"");
+    assertTrue(sync());
+
+    assertEquals("unchanged values are not stored", 0, put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"free\""));
+    assertEquals(1, put(Constants.ATTRIBUTE_TYPE_USER, "age", "31"));
+    assertTrue(sync());
+    JSONObject ua = received.getJSONObject(Constants.RequestAttributes.UA);
+    assertEquals(1, ua.length());
+    assertEquals(31, ua.getInt("age"));
+    assertFalse(received.has(Constants.RequestAttributes.DA));
+  }
+
+  @Test
+  public void rejectedUploadIsSentAgain() throws Exception {
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"free\"");
+    responseCode = 500;
+    assertTrue(sync());
+    responseCode = 204;
+    received = null;
+    assertTrue(sync());
+    assertEquals("free", received.getJSONObject(Constants.RequestAttributes.UA).getString("plan"));
+  }
+
+  @Test
+  public void valueChangedDuringUploadStaysChanged() throws Exception {
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"free\"");
+    long lastAttributeId = lastChangedAttributeId();
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"pro\"");
+    acknowledge(lastAttributeId);
+    assertTrue(sync());
+    assertEquals("pro", received.getJSONObject(Constants.RequestAttributes.UA).getString("plan"));
+  }
+
+  @Test
+  public void versionIsIncrementedOnEveryChange() throws Exception {
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"free\"");
+    assertTrue(sync());
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"pro\"");
+    put(Constants.ATTRIBUTE_TYPE_USER, "plan", "\"team\"");
+    ResultSet row = connection.createStatement().executeQuery("SELECT "
+            + Constants.COLUMN_ATTRIBUTE_VERSION + ", " + Constants.COLUMN_ATTRIBUTE_ACKED_VERSION
+            + " FROM " + Constants.TABLE_NAME_PROPERTIES);
+    assertTrue(row.next());
+    assertEquals(3, row.getInt(1));
+    assertEquals(1, row.getInt(2));
+    assertFalse(row.next());
+  }
+
+  private int put(int type, String name, String json) throws Exception {
+    PreparedStatement statement = connection.prepareStatement(DBHelper.UPSERT_ATTRIBUTE);
+    statement.setInt(1, type);
+    statement.setString(2, name);
+    statement.setString(3, json);
+    int changed = statement.executeUpdate();
+    statement.close();
+    return changed;
+  }
+
+  private long lastChangedAttributeId() throws Exception {
+    ResultSet result = connection.createStatement().executeQuery(DBHelper.SELECT_LAST_CHANGED_ATTRIBUTE_ID);
+    long id = result.next() ? result.getLong(1) : 0;
+    return result.wasNull() ? -1 : id;
+  }
+
+  private void acknowledge(long lastAttributeId) throws Exception {
+    PreparedStatement statement = connection.prepareStatement(DBHelper.ACKNOWLEDGE_ATTRIBUTES);
+    statement.setLong(1, lastAttributeId);
+    statement.executeUpdate();
+    statement.close();
+  }
+
+  /**
+   * Sends the changed attributes and acknowledges them if the upload succeeds
+   * @return false if there was nothing to send
+   */
+  private boolean sync() throws Exception {
+    long lastAttributeId = lastChangedAttributeId();
+    if (lastAttributeId == -1) {
+      return false;
+    }
+    PayloadWriter writer = new PayloadWriter(256);
+    writer.beginObject();
+    String da = changedAttributes(Constants.ATTRIBUTE_TYPE_DEVICE, lastAttributeId);
+    if (null != da) {
+      writer.name(Constants.RequestAttributes.DA).rawValue(da);
+    }
+    String ua = changedAttributes(Constants.ATTRIBUTE_TYPE_USER, lastAttributeId);
+    if (null != ua) {
+      writer.name(Constants.RequestAttributes.UA).rawValue(ua);
+    }
+    writer.endObject();
+    Payload payload = writer.finish();
+    if (post(payload) / 100 == 2) {
+      acknowledge(lastAttributeId);
+    }
+    return true;
+  }
+
+  private String changedAttributes(int type, long lastAttributeId) throws Exception {
+    PreparedStatement statement = connection.prepareStatement(DBHelper.SELECT_CHANGED_ATTRIBUTES);
+    statement.setInt(1, type);
+    statement.setLong(2, lastAttributeId);
+    ResultSet dataset = statement.executeQuery();
+    StringBuilder builder = new StringBuilder("{");
+    while (dataset.next()) {
+      if (builder.length() > 1) {
+        builder.append(",");
+      }
+      builder.append(JSONObject.quote(dataset.getString(1))).append(":").append(dataset.getString(2));
+    }
+    statement.close();
+    return builder.length() > 1 ? builder.append("}").toString() : null;
+  }
+
+  private int post(Payload payload) throws IOException {
+    URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/track");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(Constants.REQUEST_METHOD_POST);
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(payload.length);
+    OutputStream out = connection.getOutputStream();
+    out.write(payload.body, 0, payload.length);
+    out.close();
+    int code = connection.getResponseCode();
+    connection.disconnect();
+    return code;
+  }
+}
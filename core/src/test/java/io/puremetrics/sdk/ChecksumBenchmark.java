@@ -0,0 +1,107 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the {@link Checksum} of a request body against the previous implementation,
+ * which digested the materialized body and hex encoded it with {@link Integer#toHexString(int)}.
+ * Each case is warmed up before it is measured and reports the average time per operation.
+ * Run with <code>./gradlew :core:testDebugUnitTest -Ppm.benchmark=true</code>
+ */
+public class ChecksumBenchmark {
+
+  private static final int[] SIZES = {10 * 1024, 100 * 1024, 1024 * 1024, 5 * 1024 * 1024};
+  private static final int CHUNK = 8192;
+  private static volatile Object sink;
+
+  @Before
+  public void enabled() {
+    TestUtils.assumeBenchmarksEnabled();
+  }
+
+  @Test
+  public void checksum() {
+    for (int size : SIZES) {
+      final byte[] data = new byte[size];
+      new Random(size).nextBytes(data);
+      report("legacy   md5+hex", size, TestUtils.measure(new Runnable() {
+        @Override
+        public void run() {
+          sink = legacyHex(new MD5().digest(data));
+        }
+      }));
+      report("checksum md5+hex", size, TestUtils.measure(new Runnable() {
+        @Override
+        public void run() {
+          Checksum checksum = new Checksum();
+          for (int offset = 0; offset < data.length; offset += CHUNK) {
+            checksum.update(data, offset, Math.min(CHUNK, data.length - offset));
+          }
+          sink = checksum.hexDigest();
+        }
+      }));
+    }
+  }
+
+  @Test
+  public void hex() {
+    final byte[] digest = new MD5().digest(new byte[1]);
+    report("legacy   hex", digest.length, TestUtils.measure(new Runnable() {
+      @Override
+      public void run() {
+        sink = legacyHex(digest);
+      }
+    }));
+    report("table    hex", digest.length, TestUtils.measure(new Runnable() {
+      @Override
+      public void run() {
+        sink = Checksum.toHex(digest);
+      }
+    }));
+  }
+
+  private static void report(String name, int size, long nanosPerOp) {
+    System.out.println(String.format(Locale.US, "%-18s %9d bytes %14d ns/op", name, size, nanosPerOp));
+  }
+
+  private static String legacyHex(byte[] digestedData) {
+    StringBuilder hexString = new StringBuilder();
+    for (byte aMessageDigest : digestedData) {
+      String h = Integer.toHexString(0xFF & aMessageDigest);
+      while (h.length() < 2)
+        h = "0" + h;
+      hexString.append(h);
+    }
+    return hexString.toString();
+  }
+}
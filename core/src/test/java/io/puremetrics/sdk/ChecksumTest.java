@@ -0,0 +1,95 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumTest {
+
+  @Test
+  public void matchesThePlatformMD5() throws Exception {
+    Random random = new Random(42);
+    for (int size : new int[]{0, 1, 55, 56, 63, 64, 65, 10 * 1024, 100 * 1024 + 3}) {
+      byte[] data = new byte[size];
+      random.nextBytes(data);
+      assertEquals("size " + size, platformMD5Hex(data), Checksum.of(data));
+    }
+  }
+
+  @Test
+  public void chunkedUpdatesMatchASingleUpdate() throws Exception {
+    byte[] data = new byte[50000];
+    new Random(7).nextBytes(data);
+    Checksum checksum = new Checksum();
+    int offset = 0;
+    int chunk = 1;
+    while (offset < data.length) {
+      int length = Math.min(chunk, data.length - offset);
+      checksum.update(data, offset, length);
+      offset += length;
+      chunk = chunk * 3 + 1;
+    }
+    assertEquals(Checksum.of(data), checksum.hexDigest());
+    //the checksum is reset after a digest
+    assertEquals(Checksum.of(new byte[0]), checksum.hexDigest());
+  }
+
+  @Test
+  public void wrappedStreamPassesThroughAndDigests() throws Exception {
+    byte[] data = "{\"ev\":\"ss\",\"ts\":1476700000000}".getBytes("UTF-8");
+    Checksum checksum = new Checksum();
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    OutputStream out = checksum.wrap(sink);
+    out.write(data[0]);
+    out.write(data, 1, data.length - 1);
+    assertArrayEquals(data, sink.toByteArray());
+    assertEquals(platformMD5Hex(data), checksum.hexDigest());
+  }
+
+  @Test
+  public void hexEncodesEveryByteValue() {
+    byte[] bytes = new byte[256];
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 256; i++) {
+      bytes[i] = (byte) i;
+      expected.append(String.format("%02x", i));
+    }
+    assertEquals(expected.toString(), Checksum.toHex(bytes));
+  }
+
+  private static String platformMD5Hex(byte[] data) throws Exception {
+    return Checksum.toHex(MessageDigest.getInstance("MD5").digest(data));
+  }
+}
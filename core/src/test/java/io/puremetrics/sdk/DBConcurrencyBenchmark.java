@@ -0,0 +1,274 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores batches of events from several threads while an upload reads the whole backlog,
+ * on a copy of the connection and locking scheme of {@link DBHelper}: writers share one connection
+ * guarded by a write lock, the upload reads on its own connection guarded by a read lock,
+ * and the DB uses write-ahead logging. The insert latency should not depend on the size of the read.
+ * The statements run through JDBC, since the Android SQLite bindings do not run on the JVM.
+ * Run with <code>./gradlew :core:testDebugUnitTest -Ppm.benchmark=true</code>
+ */
+public class DBConcurrencyBenchmark {
+
+  private static final int WRITERS = 4;
+  private static final int BATCHES_PER_WRITER = 150;
+  private static final int BATCH_SIZE = Constants.DEFAULT_EVENT_BATCH_SIZE;
+  private static final int SMALL_BACKLOG = 500;
+  private static final int LARGE_BACKLOG = 100000;
+
+  private final Object writeLock = new Object();
+  private final Object readLock = new Object();
+  private File file;
+  private Connection writer;
+  private Connection reader;
+  private PreparedStatement insert;
+  private byte[] record;
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @Before
+  public void open() throws Exception {
+    TestUtils.assumeBenchmarksEnabled();
+    file = File.createTempFile("pm-concurrency", ".db");
+    file.delete();
+    writer = connect();
+    writer.createStatement().execute(DBHelper.CREATE_TABLE_EVENTS);
+    insert = writer.prepareStatement(DBHelper.INSERT_EVENT);
+    reader = connect();
+    HashMap<String, Object> attributes = new HashMap<>();
+    attributes.put(Constants.Events.Attributes.PRODUCT_ID, "sku-1");
+    attributes.put(Constants.Events.Attributes.UNIT_PRICE, 1299);
+    attributes.put(Constants.Events.Attributes.CURRENCY, "INR");
+    record = new Event(1, "product_view", 1476700000000L, attributes).toRecord();
+  }
+
+  @After
+  public void close() throws Exception {
+    if (null == writer) {
+      return;
+    }
+    writer.close();
+    reader.close();
+    file.delete();
+    new File(file.getPath() + "-wal").delete();
+    new File(file.getPath() + "-shm").delete();
+  }
+
+  @Test
+  public void insertLatencyDoesNotDependOnTheUploadSize() throws Exception {
+    //warms up the statements and the JIT
+    storeWhileUploading(SMALL_BACKLOG);
+    deleteAll();
+    long[] small = storeWhileUploading(SMALL_BACKLOG);
+    deleteAll();
+    long[] large = storeWhileUploading(LARGE_BACKLOG);
+    String latencies = "mean " + mean(small) + "/" + mean(large)
+            + " us, p99 " + percentile(small, 99) + "/" + percentile(large, 99) + " us";
+    //a write waiting for a read of the large backlog takes hundreds of milliseconds
+    assertTrue(latencies, mean(large) <= 2 * mean(small) + 500);
+    assertTrue(latencies, percentile(large, 99) <= 2 * percentile(small, 99) + 50000);
+  }
+
+  /**
+   * Runs the writers while an upload repeatedly reads the backlog
+   *
+   * @return the latencies of the stored batches in microseconds
+   */
+  private long[] storeWhileUploading(int backlog) throws Exception {
+    List<Event> prefill = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      prefill.add(event(i));
+    }
+    for (int i = 0; i < backlog / BATCH_SIZE; i++) {
+      storeEvents(prefill);
+    }
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+    Thread upload = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (writersDone.getCount() > 0) {
+            readBacklog();
+            started.countDown();
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+          started.countDown();
+        }
+      }
+    });
+    upload.start();
+    assertTrue(started.await(60, TimeUnit.SECONDS));
+
+    final long[] latencies = new long[WRITERS * BATCHES_PER_WRITER];
+    for (int w = 0; w < WRITERS; w++) {
+      final int offset = w * BATCHES_PER_WRITER;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int b = 0; b < BATCHES_PER_WRITER; b++) {
+              List<Event> batch = new ArrayList<>(BATCH_SIZE);
+              for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(event(b));
+              }
+              long start = System.nanoTime();
+              storeEvents(batch);
+              latencies[offset + b] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            writersDone.countDown();
+          }
+        }
+      }).start();
+    }
+    assertTrue(writersDone.await(60, TimeUnit.SECONDS));
+    upload.join();
+    assertNull(failure.get());
+    return latencies;
+  }
+
+  /**
+   * Mirrors the write path of {@link DBHelper#storeEvents}
+   */
+  private void storeEvents(List<Event> events) throws SQLException {
+    synchronized (writeLock) {
+      writer.setAutoCommit(false);
+      try {
+        for (Event event : events) {
+          insert.setLong(1, event.sessionId);
+          insert.setBytes(2, record);
+          insert.executeUpdate();
+        }
+        writer.commit();
+      } finally {
+        writer.setAutoCommit(true);
+      }
+    }
+  }
+
+  /**
+   * Reads everything up to the last event id in one go and writes it as a payload,
+   * a single large upload read like {@link DBHelper#writeEvents} over the whole backlog
+   */
+  private void readBacklog() throws Exception {
+    synchronized (readLock) {
+      Statement statement = reader.createStatement();
+      try {
+        ResultSet last = statement.executeQuery("SELECT MAX(" + Constants.COLUMN_EVENTS_ID + ") FROM "
+                + Constants.TABLE_NAME_EVENTS);
+        long lastEventId = last.getLong(1);
+        last.close();
+        ResultSet events = statement.executeQuery("SELECT " + Constants.COLUMN_EVENTS_SESSION + ", "
+                + Constants.COLUMN_EVENTS_EV_RECORD + " FROM " + Constants.TABLE_NAME_EVENTS
+                + " WHERE " + Constants.COLUMN_EVENTS_ID + "<=" + lastEventId
+                + " ORDER BY " + Constants.COLUMN_EVENTS_SESSION + " ASC, " + Constants.COLUMN_EVENTS_ID + " ASC");
+        PayloadWriter payload = new PayloadWriter(Constants.REQUEST_OVERHEAD_BYTES);
+        payload.beginArray();
+        payload.beginSession(1);
+        while (events.next()) {
+          EventCodec.decode(events.getBytes(2), payload);
+        }
+        events.close();
+        payload.endSession();
+        payload.endArray();
+        payload.finish();
+      } finally {
+        statement.close();
+      }
+    }
+  }
+
+  private void deleteAll() throws SQLException {
+    synchronized (writeLock) {
+      writer.createStatement().execute("DELETE FROM " + Constants.TABLE_NAME_EVENTS);
+    }
+  }
+
+  private Connection connect() throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+    Statement statement = connection.createStatement();
+    statement.execute("PRAGMA journal_mode=WAL");
+    statement.execute("PRAGMA synchronous=NORMAL");
+    statement.execute("PRAGMA temp_store=MEMORY");
+    statement.execute("PRAGMA cache_size=" + Constants.DATABASE_CACHE_SIZE_PAGES);
+    statement.close();
+    return connection;
+  }
+
+  private static Event event(long sessionId) {
+    return new Event(sessionId, "product_view", 1476700000000L,
+            Collections.<String, Object>singletonMap(Constants.Events.Attributes.PRODUCT_ID, "sku-1"));
+  }
+
+  private static long mean(long[] values) {
+    long sum = 0;
+    for (long value : values) {
+      sum += value;
+    }
+    return sum / values.length;
+  }
+
+  private static long percentile(long[] values, int percentile) {
+    long[] sorted = Arrays.copyOf(values, values.length);
+    Arrays.sort(sorted);
+    return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+  }
+}
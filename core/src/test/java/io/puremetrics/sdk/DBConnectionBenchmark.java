@@ -0,0 +1,127 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Compares the insert rate of opening the DB for every stored event, as {@link DBHelper} used to,
+ * with a connection which is kept open. Every open applies the pragmas of {@link DBHelper},
+ * like {@link DBHelper#onConfigure} does. The statements run through JDBC, since the Android
+ * SQLite bindings do not run on the JVM.
+ * Run with <code>./gradlew :core:testDebugUnitTest -Ppm.benchmark=true</code>
+ */
+public class DBConnectionBenchmark {
+
+  private File file;
+  private String url;
+  private byte[] record;
+
+  @Before
+  public void enabled() throws Exception {
+    TestUtils.assumeBenchmarksEnabled();
+    file = File.createTempFile("pm-bench-connection", ".db");
+    file.delete();
+    url = "jdbc:sqlite:" + file.getAbsolutePath();
+    Connection connection = open();
+    connection.createStatement().execute(DBHelper.CREATE_TABLE_EVENTS);
+    connection.close();
+    HashMap<String, Object> attributes = new HashMap<>();
+    attributes.put(Constants.Events.Attributes.PRODUCT_ID, "sku-1");
+    attributes.put(Constants.Events.Attributes.UNIT_PRICE, 1299);
+    record = new Event(1476700000000L, "product_view", System.currentTimeMillis(), attributes).toRecord();
+  }
+
+  @Test
+  public void insertRate() throws Exception {
+    report("open per insert", TestUtils.measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Connection connection = open();
+          try {
+            insert(connection.prepareStatement(DBHelper.INSERT_EVENT));
+          } finally {
+            connection.close();
+          }
+        } catch (SQLException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }));
+
+    Connection connection = open();
+    final PreparedStatement statement = connection.prepareStatement(DBHelper.INSERT_EVENT);
+    report("persistent", TestUtils.measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          insert(statement);
+        } catch (SQLException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }));
+    connection.close();
+
+    file.delete();
+    new File(file.getPath() + "-wal").delete();
+    new File(file.getPath() + "-shm").delete();
+  }
+
+  private Connection open() throws SQLException {
+    Connection connection = DriverManager.getConnection(url);
+    Statement statement = connection.createStatement();
+    statement.execute("PRAGMA journal_mode=WAL");
+    statement.execute("PRAGMA synchronous=NORMAL");
+    statement.execute("PRAGMA temp_store=MEMORY");
+    statement.execute("PRAGMA cache_size=" + Constants.DATABASE_CACHE_SIZE_PAGES);
+    statement.close();
+    return connection;
+  }
+
+  private void insert(PreparedStatement statement) throws SQLException {
+    statement.setLong(1, 1476700000000L);
+    statement.setBytes(2, record);
+    statement.executeUpdate();
+  }
+
+  private static void report(String mode, long nanosPerInsert) {
+    System.out.println(String.format(Locale.US, "%-16s %8d ns/insert %10d inserts/s",
+            mode, nanosPerInsert, 1000000000L / Math.max(1, nanosPerInsert)));
+  }
+}
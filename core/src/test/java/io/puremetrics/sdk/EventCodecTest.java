@@ -0,0 +1,117 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventCodecTest {
+
+  @Test
+  public void roundTripsEveryValueType() throws Exception {
+    JSONObject attributes = new JSONObject();
+    attributes.put("text", "café \"quoted\"\n");
+    attributes.put(Constants.Events.Attributes.AMOUNT, 4999);
+    attributes.put("negative", -1L);
+    attributes.put("large", Long.MIN_VALUE);
+    attributes.put("price", 49.99);
+    attributes.put("whole", 5.0);
+    attributes.put("ratio", 1.1f);
+    attributes.put("decimal", new BigDecimal("12345678901234567890.5"));
+    attributes.put("flag", true);
+    attributes.put("off", false);
+    attributes.put("missing", JSONObject.NULL);
+    attributes.put(Constants.Events.Attributes.PRODUCTS, new JSONArray()
+            .put(new JSONObject().put(Constants.Events.Attributes.PRODUCT_ID, "sku-1").put("qty", 2))
+            .put(new JSONArray())
+            .put(new JSONObject()));
+    JSONObject event = event(Constants.Events.Transaction.SUCCESSFUL, attributes);
+
+    assertEquals(event.toString(), decode(EventCodec.encode(event)));
+  }
+
+  @Test
+  public void recordIsLessThanHalfTheJson() throws Exception {
+    JSONObject attributes = new JSONObject();
+    attributes.put(Constants.Events.Attributes.PRODUCT_ID, "sku-10293");
+    attributes.put(Constants.Events.Attributes.UNIT_PRICE, 1299);
+    attributes.put(Constants.Events.Attributes.CURRENCY, "INR");
+    attributes.put(Constants.Events.Attributes.SOURCE, Constants.Events.Attributes.META);
+    JSONObject event = event(Constants.Events.ATTRIBUTION, attributes);
+
+    byte[] record = EventCodec.encode(event);
+    int json = event.toString().getBytes("UTF-8").length;
+    assertTrue(record.length + " bytes vs " + json, record.length * 2 < json);
+  }
+
+  @Test(expected = JSONException.class)
+  public void rejectsValuesWhichAreNotJson() throws Exception {
+    EventCodec.encode(event("nan", new JSONObject().put("value", Double.NaN)));
+  }
+
+  @Test
+  public void rejectsCorruptRecords() throws Exception {
+    byte[] record = EventCodec.encode(event("truncated", new JSONObject().put("key", "value")));
+    assertCorrupt(Arrays.copyOf(record, record.length - 1));
+    assertCorrupt(Arrays.copyOf(record, record.length + 1));
+    assertCorrupt(new byte[0]);
+    record[0] = EventCodec.FORMAT_VERSION + 1;
+    assertCorrupt(record);
+  }
+
+  private static void assertCorrupt(byte[] record) {
+    try {
+      decode(record);
+      fail("Decoded a corrupt record");
+    } catch (IOException expected) {
+      //expected
+    }
+  }
+
+  private static JSONObject event(String name, JSONObject attributes) throws JSONException {
+    return new JSONObject()
+            .put(Constants.RequestAttributes.EVENT_NAME, name)
+            .put(Constants.RequestAttributes.TS, 1476700000000L)
+            .put(Constants.RequestAttributes.EVENT_ATTRS, attributes);
+  }
+
+  private static String decode(byte[] record) throws IOException {
+    PayloadWriter writer = new PayloadWriter(record.length * 2);
+    EventCodec.decode(record, writer);
+    return writer.finish().toString();
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost on the calling thread of handing an event to the background writer,
+ * the old path submitted one Runnable per event to a {@link ThreadPoolExecutor}.
+ * Run with <code>./gradlew :core:testDebugUnitTest -Ppm.benchmark=true</code>
+ */
+public class EventRingBenchmark {
+
+  private static final int CAPACITY = 1024;
+  private static volatile Object sink;
+
+  @Before
+  public void enabled() {
+    TestUtils.assumeBenchmarksEnabled();
+  }
+
+  @Test
+  public void handOff() throws Exception {
+    final Object event = new Object();
+
+    final EventRing<Object> ring = new EventRing<>(CAPACITY);
+    Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          Object element = ring.poll();
+          if (null == element) {
+            Thread.yield();
+          } else {
+            sink = element;
+          }
+        }
+      }
+    });
+    consumer.start();
+    report("ring offer", TestUtils.measure(new Runnable() {
+      @Override
+      public void run() {
+        while (!ring.offer(event)) {
+          Thread.yield();
+        }
+      }
+    }));
+    consumer.interrupt();
+    consumer.join();
+
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(CAPACITY), new ThreadPoolExecutor.CallerRunsPolicy());
+    report("executor submit", TestUtils.measure(new Runnable() {
+      @Override
+      public void run() {
+        executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            sink = event;
+          }
+        });
+      }
+    }));
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  private static void report(String name, long nanosPerOp) {
+    System.out.println(String.format(Locale.US, "%-16s %8d ns/op", name, nanosPerOp));
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventRingTest {
+
+  @Test
+  public void capacityIsRoundedUpToAPowerOfTwo() {
+    assertEquals(2, new EventRing<Integer>(1).capacity());
+    assertEquals(8, new EventRing<Integer>(8).capacity());
+    assertEquals(1024, new EventRing<Integer>(1000).capacity());
+  }
+
+  @Test
+  public void offersUntilFullAndPollsInOrderAcrossLaps() {
+    EventRing<Integer> ring = new EventRing<>(4);
+    int next = 0;
+    int expected = 0;
+    for (int lap = 0; lap < 5; lap++) {
+      while (ring.offer(next)) {
+        next++;
+      }
+      assertEquals(4, ring.size());
+      assertEquals(Integer.valueOf(expected++), ring.poll());
+      assertTrue(ring.offer(next++));
+      assertFalse(ring.offer(next));
+      List<Integer> drained = new ArrayList<>();
+      assertEquals(4, ring.drainTo(drained));
+      for (Integer value : drained) {
+        assertEquals(Integer.valueOf(expected++), value);
+      }
+      assertNull(ring.poll());
+      assertEquals(0, ring.size());
+    }
+  }
+
+  @Test
+  public void concurrentProducersLoseNothingAndKeepTheirOrder() throws Exception {
+    final int producers = 4;
+    final int perProducer = 200000;
+    final EventRing<long[]> ring = new EventRing<>(256);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < perProducer; i++) {
+            long[] element = {producer, i};
+            while (!ring.offer(element)) {
+              Thread.yield();
+            }
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    long[] lastSeen = new long[producers];
+    Arrays.fill(lastSeen, -1);
+    int received = 0;
+    while (received < producers * perProducer) {
+      long[] element = ring.poll();
+      if (null == element) {
+        Thread.yield();
+        continue;
+      }
+      int producer = (int) element[0];
+      assertEquals(lastSeen[producer] + 1, element[1]);
+      lastSeen[producer] = element[1];
+      received++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(ring.poll());
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class EventTest {
+
+  @Test
+  public void serializesTheCapturedFields() throws Exception {
+    HashMap<String, Object> attributes = new HashMap<>();
+    attributes.put("sku", "A-1");
+    attributes.put("price", 42);
+    JSONObject json = json(new Event(3, "product_view", 1476700000000L, attributes));
+    assertEquals("product_view", json.getString(Constants.RequestAttributes.EVENT_NAME));
+    assertEquals(1476700000000L, json.getLong(Constants.RequestAttributes.TS));
+    assertEquals("A-1", json.getJSONObject(Constants.RequestAttributes.EVENT_ATTRS).getString("sku"));
+    assertEquals(42, json.getJSONObject(Constants.RequestAttributes.EVENT_ATTRS).getInt("price"));
+  }
+
+  @Test
+  public void attributesAreCopiedWhenTracked() throws Exception {
+    HashMap<String, Object> attributes = new HashMap<>();
+    attributes.put("sku", "A-1");
+    Event event = new Event(3, "product_view", 1476700000000L, attributes);
+    attributes.put("sku", "B-2");
+    attributes.put("extra", true);
+    JSONObject eventAttributes = json(event)
+            .getJSONObject(Constants.RequestAttributes.EVENT_ATTRS);
+    assertEquals("A-1", eventAttributes.getString("sku"));
+    assertFalse(eventAttributes.has("extra"));
+  }
+
+  @Test
+  public void emptyAttributesAreLeftOutAndRecordIsCached() throws Exception {
+    Event event = new Event(3, "app_open", 1476700000000L, new HashMap<String, Object>());
+    assertFalse(json(event).has(Constants.RequestAttributes.EVENT_ATTRS));
+    assertSame(event.toRecord(), event.toRecord());
+  }
+
+  private static JSONObject json(Event event) throws Exception {
+    PayloadWriter writer = new PayloadWriter(64);
+    EventCodec.decode(event.toRecord(), writer);
+    return new JSONObject(writer.finish().toString());
+  }
+}
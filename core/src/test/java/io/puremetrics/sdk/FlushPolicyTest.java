@@ -0,0 +1,173 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the thresholds of {@link FlushPolicy} and that its counters follow the stored and synced events
+ */
+public class FlushPolicyTest {
+
+  private static final long NOW = 1476700000000L;
+  private static final long MAX_AGE = 60 * 1000L;
+
+  private int flushes;
+  private final List<Long> ageChecks = new ArrayList<>();
+  private final FlushPolicy.Listener listener = new FlushPolicy.Listener() {
+    @Override
+    public void onFlushDue() {
+      flushes++;
+    }
+
+    @Override
+    public void scheduleAgeCheck(long delay) {
+      ageChecks.add(delay);
+    }
+  };
+
+  @Before
+  public void reset() {
+    flushes = 0;
+    ageChecks.clear();
+  }
+
+  @Test
+  public void countThresholdTriggersOnce() {
+    FlushPolicy policy = new FlushPolicy(10, 0, 0, listener);
+    policy.onStored(events(9, NOW), NOW);
+    assertEquals(0, flushes);
+    assertEquals(9, policy.getPendingEvents());
+    policy.onStored(events(1, NOW), NOW);
+    assertEquals(1, flushes);
+    //the sync is already triggered
+    policy.onStored(events(5, NOW), NOW);
+    assertEquals(1, flushes);
+    assertTrue(ageChecks.isEmpty());
+  }
+
+  @Test
+  public void byteThresholdCountsTheEncodedRecords() throws Exception {
+    List<Event> batch = events(4, NOW);
+    long bytes = 0;
+    for (Event event : batch) {
+      bytes += event.toRecord().length;
+    }
+    FlushPolicy policy = new FlushPolicy(0, bytes + 1, 0, listener);
+    policy.onStored(batch, NOW);
+    assertEquals(bytes, policy.getPendingBytes());
+    assertEquals(0, flushes);
+    policy.onStored(events(1, NOW), NOW);
+    assertEquals(1, flushes);
+  }
+
+  @Test
+  public void ageThresholdIsCheckedOnATimer() {
+    FlushPolicy policy = new FlushPolicy(0, 0, MAX_AGE, listener);
+    policy.onStored(events(1, NOW - 1000), NOW);
+    assertEquals(Collections.singletonList(MAX_AGE - 1000), ageChecks);
+    //later events do not move the timer
+    policy.onStored(events(1, NOW), NOW);
+    assertEquals(1, ageChecks.size());
+    assertFalse(policy.check(NOW + MAX_AGE - 1001));
+    assertTrue(policy.check(NOW + MAX_AGE - 1000));
+    assertEquals(1, flushes);
+  }
+
+  @Test
+  public void syncSubtractsWhatItCarried() {
+    FlushPolicy policy = new FlushPolicy(10, 0, MAX_AGE, listener);
+    policy.onStored(events(10, NOW), NOW);
+    assertEquals(1, flushes);
+    FlushPolicy.Mark mark = policy.mark(NOW + 10);
+    //stored while the sync runs
+    policy.onStored(events(3, NOW + 20), NOW + 20);
+    ageChecks.clear();
+    policy.onSynced(mark, NOW + 30);
+    assertEquals(3, policy.getPendingEvents());
+    //the remaining events are aged from the start of the sync
+    assertEquals(Collections.singletonList(MAX_AGE - 20), ageChecks);
+    policy.onStored(events(7, NOW + 40), NOW + 40);
+    assertEquals(2, flushes);
+
+    policy.onSynced(policy.mark(NOW + 50), NOW + 50);
+    assertEquals(0, policy.getPendingEvents());
+    assertEquals(0, policy.getPendingBytes());
+    assertFalse(policy.check(NOW + 10 * MAX_AGE));
+  }
+
+  @Test
+  public void syncWhichDidNotUploadHoldsTheTriggerUntilTheNextAttempt() {
+    FlushPolicy policy = new FlushPolicy(10, 0, MAX_AGE, listener);
+    policy.onStored(events(10, NOW), NOW);
+    assertEquals(1, flushes);
+    //the sync was skipped, nothing was subtracted
+    ageChecks.clear();
+    policy.onSyncEnded(NOW + 10, 0);
+    assertEquals(10, policy.getPendingEvents());
+    long delay = Math.max(Constants.FLUSH_REARM_DELAY, MAX_AGE);
+    assertEquals(Collections.singletonList(delay), ageChecks);
+    //the events stored while it is held do not start a sync each
+    policy.onStored(events(5, NOW + 20), NOW + 20);
+    assertFalse(policy.check(NOW + 10 + delay - 1));
+    assertEquals(1, flushes);
+    assertTrue(policy.check(NOW + 10 + delay));
+    assertEquals(2, flushes);
+
+    //a backoff further away than the delay holds it longer
+    ageChecks.clear();
+    long nextAttemptTime = NOW + 10 * delay;
+    policy.onSyncEnded(NOW + 2 * delay, nextAttemptTime);
+    assertEquals(Collections.singletonList(nextAttemptTime - NOW - 2 * delay), ageChecks);
+    assertFalse(policy.check(nextAttemptTime - 1));
+    assertTrue(policy.check(nextAttemptTime));
+    assertEquals(3, flushes);
+
+    //a sync which uploaded has already cleared the trigger
+    policy.onSynced(policy.mark(nextAttemptTime + 10), nextAttemptTime + 10);
+    ageChecks.clear();
+    policy.onSyncEnded(nextAttemptTime + 20, 0);
+    assertTrue(ageChecks.isEmpty());
+  }
+
+  private static List<Event> events(int count, long timestamp) {
+    List<Event> events = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      events.add(new Event(1, "event_" + i, timestamp, Collections.singletonMap("index", i)));
+    }
+    return events;
+  }
+}
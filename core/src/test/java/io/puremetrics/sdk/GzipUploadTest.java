@@ -0,0 +1,155 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads request bodies written by {@link Utils#writeBody} to a local HTTP stand-in
+ * for the PureMetrics endpoint, which verifies them the way the server does.
+ */
+public class GzipUploadTest {
+
+  private HttpServer server;
+  private volatile byte[] receivedBody;
+  private volatile int receivedBytes;
+  private volatile String receivedEncoding;
+  private volatile String receivedChecksum;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/v1/track", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        receivedEncoding = exchange.getRequestHeaders().getFirst(Constants.Headers.CONTENT_ENCODING);
+        receivedChecksum = exchange.getRequestHeaders().getFirst(Constants.Headers.CONTENTMD5);
+        byte[] raw = TestUtils.readFully(exchange.getRequestBody());
+        receivedBytes = raw.length;
+        InputStream body = new ByteArrayInputStream(raw);
+        if (Constants.Headers.VALUE_GZIP.equals(receivedEncoding)) {
+          body = new GZIPInputStream(body);
+        }
+        receivedBody = TestUtils.readFully(body);
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void gzipBodyDecompressesToThePayload() throws Exception {
+    byte[] payload = samplePayload();
+    assertEquals(204, post(payload, true, Constants.DEFAULT_COMPRESSION_LEVEL));
+    assertEquals(Constants.Headers.VALUE_GZIP, receivedEncoding);
+    assertArrayEquals(payload, receivedBody);
+    assertTrue("payload was not compressed: " + receivedBytes, receivedBytes * 5 < payload.length);
+  }
+
+  @Test
+  public void checksumIsOfTheUncompressedBody() throws Exception {
+    byte[] payload = samplePayload();
+    post(payload, true, 9);
+    assertEquals(md5Hex(receivedBody), receivedChecksum);
+  }
+
+  @Test
+  public void plainBodyIsSentAsIs() throws Exception {
+    byte[] payload = samplePayload();
+    assertEquals(204, post(payload, false, Constants.DEFAULT_COMPRESSION_LEVEL));
+    assertNull(receivedEncoding);
+    assertEquals(payload.length, receivedBytes);
+    assertArrayEquals(payload, receivedBody);
+    assertEquals(md5Hex(receivedBody), receivedChecksum);
+  }
+
+  private int post(byte[] payload, boolean gzip, int level) throws IOException {
+    URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/track");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(Constants.REQUEST_METHOD_POST);
+    connection.setRequestProperty(Constants.Headers.CONTENTMD5, Checksum.of(payload));
+    connection.setDoOutput(true);
+    if (gzip) {
+      connection.setRequestProperty(Constants.Headers.CONTENT_ENCODING, Constants.Headers.VALUE_GZIP);
+      connection.setChunkedStreamingMode(0);
+    } else {
+      connection.setFixedLengthStreamingMode(payload.length);
+    }
+    Utils.writeBody(connection.getOutputStream(), payload, payload.length, gzip, level);
+    int code = connection.getResponseCode();
+    connection.disconnect();
+    return code;
+  }
+
+  private static byte[] samplePayload() throws IOException {
+    StringBuilder builder = new StringBuilder("{\"s\":[{\"id\":\"1476700000000\",\"ss\":1476700000000,\"e\":[");
+    for (int i = 0; i < 2000; i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append("{\"ev\":\"product_view\",\"ts\":").append(1476700000000L + i)
+              .append(",\"attr\":{\"product_id\":\"").append(i % 50).append("\",\"category\":\"shoes\"}}");
+    }
+    builder.append("]}]}");
+    return builder.toString().getBytes("UTF-8");
+  }
+
+  private static String md5Hex(byte[] data) throws Exception {
+    byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+    StringBuilder builder = new StringBuilder();
+    for (byte b : digest) {
+      builder.append(String.format("%02x", b));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,259 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedEventLogTest {
+
+  private static final int SEGMENT_SIZE = 512;
+
+  private File directory;
+  private MappedEventLog log;
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @Before
+  public void open() throws Exception {
+    directory = File.createTempFile("pm-events", "");
+    assertTrue(directory.delete());
+    log = new MappedEventLog(directory, SEGMENT_SIZE);
+  }
+
+  @After
+  public void delete() {
+    log.release();
+    File[] files = directory.listFiles();
+    if (null != files) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void writesPagesGroupedBySession() throws Exception {
+    assertEquals(-1, log.getLastEventId());
+    assertTrue(log.storeEvents(events(1, 3, 100, 200)));
+    log.storeEvents(events(4, 2, 100));
+    assertEquals(5, log.getLastEventId());
+
+    EventStore.EventPage page = log.getEventsPage(0, 5, 4, Integer.MAX_VALUE);
+    assertEquals(0, page.afterEventId);
+    assertEquals(4, page.lastEventId);
+    assertEquals(4, page.eventCount);
+
+    JSONArray sessions = write(page);
+    assertEquals(2, sessions.length());
+    assertEquals(100, sessions.getJSONObject(0).getLong(Constants.RequestAttributes.SESSION_START_TIME));
+    assertEquals("100", sessions.getJSONObject(0).getString(Constants.RequestAttributes.SESSION_ID));
+    assertEquals("[1,3,4]", names(sessions.getJSONObject(0)));
+    assertEquals("[2]", names(sessions.getJSONObject(1)));
+
+    page = log.getEventsPage(4, 5, 4, Integer.MAX_VALUE);
+    assertEquals(5, page.lastEventId);
+    assertNull(log.getEventsPage(5, 5, 4, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void pagesAreBoundedBySize() throws Exception {
+    log.storeEvents(events(1, 3, 100));
+    EventStore.EventPage page = log.getEventsPage(0, 3, 10, 1);
+    assertEquals(1, page.eventCount);
+    assertEquals(1, page.lastEventId);
+  }
+
+  @Test
+  public void deletesAcknowledgedSegmentsAndKeepsIdsAcrossReopen() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      log.storeEvents(events(i * 5 + 1, 5, 100));
+    }
+    assertEquals(50, log.getLastEventId());
+    int segments = segmentCount();
+    assertTrue("segments: " + segments, segments > 3);
+
+    log.deleteEvents(0, 30);
+    assertTrue(segmentCount() < segments);
+    assertEquals(31, log.getEventsPage(0, 50, 1, Integer.MAX_VALUE).lastEventId);
+
+    log.release();
+    log = new MappedEventLog(directory, SEGMENT_SIZE);
+    assertEquals(50, log.getLastEventId());
+    assertEquals(31, log.getEventsPage(0, 50, 1, Integer.MAX_VALUE).lastEventId);
+    assertEquals("[31,32,33,34,35]", names(write(log.getEventsPage(30, 35, 10, Integer.MAX_VALUE)).getJSONObject(0)));
+
+    log.storeEvents(events(51, 1, 100));
+    assertEquals(51, log.getLastEventId());
+    log.deleteEvents(30, 51);
+    assertEquals(-1, log.getLastEventId());
+    assertEquals(1, segmentCount());
+  }
+
+  @Test
+  public void discardsEntriesWithoutCommitMarker() throws Exception {
+    log.storeEvents(events(1, 2, 100));
+    log.release();
+
+    //a batch which was interrupted before its commit marker: a valid entry followed by a torn one
+    File segment = directory.listFiles()[0];
+    int end = lastCommitEnd(segment);
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.seek(end);
+      file.writeInt(20);
+      file.writeInt(12345);
+      file.writeLong(100);
+      file.write(new byte[20]);
+    } finally {
+      file.close();
+    }
+
+    log = new MappedEventLog(directory, SEGMENT_SIZE);
+    assertEquals(2, log.getLastEventId());
+    log.storeEvents(events(3, 1, 100));
+    log.release();
+    log = new MappedEventLog(directory, SEGMENT_SIZE);
+    assertEquals(3, log.getLastEventId());
+    assertEquals("[1,2,3]", names(write(log.getEventsPage(0, 3, 10, Integer.MAX_VALUE)).getJSONObject(0)));
+  }
+
+  @Test
+  public void corruptRecordIsReportedAndDroppedAfterTheEventsBeforeIt() throws Exception {
+    log.storeEvents(events(1, 3, 100));
+
+    //the record of the second event passes the CRC check but cannot be decoded,
+    //the mapping is shared so the change is seen by the open log
+    File segment = directory.listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.seek(24);
+      int firstLength = file.readInt();
+      file.seek(24 + 16 + firstLength + 16);
+      file.write(0x7F);
+    } finally {
+      file.close();
+    }
+
+    EventStore.EventPage page = log.getEventsPage(0, 3, 10, Integer.MAX_VALUE);
+    try {
+      write(page);
+      fail("corrupt record was written");
+    } catch (EventStore.CorruptEventException e) {
+      assertEquals(2, e.eventId);
+    }
+
+    //what a sync does: the events before the corrupt record are sent, then the record is dropped
+    page = log.getEventsPage(0, 1, 10, Integer.MAX_VALUE);
+    assertEquals("[1]", names(write(page).getJSONObject(0)));
+    log.deleteEvents(0, 1);
+    assertNull(log.getEventsPage(1, 1, 10, Integer.MAX_VALUE));
+    log.deleteEvents(1, 2);
+    page = log.getEventsPage(2, 3, 10, Integer.MAX_VALUE);
+    assertEquals("[3]", names(write(page).getJSONObject(0)));
+  }
+
+  /**
+   * Events named after their expected ids, spread round robin over the sessions
+   */
+  private static List<Event> events(int firstId, int count, long... sessions) {
+    List<Event> events = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      HashMap<String, Object> attributes = new HashMap<>();
+      attributes.put("index", i);
+      events.add(new Event(sessions[i % sessions.length], String.valueOf(firstId + i), 1476700000000L, attributes));
+    }
+    return events;
+  }
+
+  private JSONArray write(EventStore.EventPage page) throws Exception {
+    PayloadWriter writer = new PayloadWriter(1024);
+    log.writeEvents(page, writer);
+    return new JSONArray(writer.finish().toString());
+  }
+
+  private static String names(JSONObject session) throws Exception {
+    JSONArray events = session.getJSONArray(Constants.RequestAttributes.EVENT);
+    StringBuilder names = new StringBuilder("[");
+    for (int i = 0; i < events.length(); i++) {
+      if (i > 0) {
+        names.append(',');
+      }
+      names.append(events.getJSONObject(i).getString(Constants.RequestAttributes.EVENT_NAME));
+    }
+    return names.append(']').toString();
+  }
+
+  private int segmentCount() {
+    return directory.listFiles().length;
+  }
+
+  /**
+   * Finds the offset after the last commit marker by walking the entries of a segment
+   */
+  private static int lastCommitEnd(File segment) throws Exception {
+    RandomAccessFile file = new RandomAccessFile(segment, "r");
+    try {
+      int offset = 24;
+      int end = offset;
+      while (offset + 4 <= file.length()) {
+        file.seek(offset);
+        int length = file.readInt();
+        if (length == -1) {
+          offset += 8;
+          end = offset;
+        } else if (length > 0) {
+          offset += 16 + length;
+        } else {
+          break;
+        }
+      }
+      return end;
+    } finally {
+      file.close();
+    }
+  }
+}
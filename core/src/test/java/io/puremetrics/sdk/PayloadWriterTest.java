@@ -0,0 +1,81 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class PayloadWriterTest {
+
+  @Test
+  public void writesValidJson() throws Exception {
+    PayloadWriter writer = new PayloadWriter(16);
+    writer.beginObject()
+            .name("da").rawValue("{\"ma\":\"LGE\",\"yc\":2013}")
+            .name("s").beginArray();
+    for (int session = 1; session <= 2; session++) {
+      writer.beginObject()
+              .name("id").value(String.valueOf(session))
+              .name("ss").value(session)
+              .name("e").beginArray();
+      for (int i = 0; i < 3; i++) {
+        writer.rawValue("{\"ev\":\"e" + i + "\",\"ts\":" + i + "}");
+      }
+      writer.endArray().endObject();
+    }
+    writer.endArray()
+            .name("tz").value("Asia/Kolkata \"quoted\"")
+            .endObject();
+    Payload payload = writer.finish();
+
+    JSONObject request = new JSONObject(payload.toString());
+    assertEquals(2013, request.getJSONObject("da").getInt("yc"));
+    JSONArray sessions = request.getJSONArray("s");
+    assertEquals(2, sessions.length());
+    assertEquals("2", sessions.getJSONObject(1).getString("id"));
+    assertEquals(3, sessions.getJSONObject(1).getJSONArray("e").length());
+    assertEquals("e2", sessions.getJSONObject(0).getJSONArray("e").getJSONObject(2).getString("ev"));
+    assertEquals("Asia/Kolkata \"quoted\"", request.getString("tz"));
+  }
+
+  @Test
+  public void checksumMatchesTheWrittenBytes() throws Exception {
+    PayloadWriter writer = new PayloadWriter(0);
+    writer.beginObject().name("s").beginArray().endArray().name("ev").value("नमस्ते").endObject();
+    Payload payload = writer.finish();
+
+    byte[] body = new byte[payload.length];
+    System.arraycopy(payload.body, 0, body, 0, payload.length);
+    assertEquals("{\"s\":[],\"ev\":\"नमस्ते\"}", new String(body, Charset.forName("UTF-8")));
+    assertEquals(Checksum.of(body), payload.checksum);
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link SessionState} only writes the {@link StateFile} on real transitions
+ */
+public class SessionStateTest {
+
+  private static final long SESSION = 30 * 60 * 1000L;
+  private static final long START = 1476700000000L;
+
+  private File file;
+
+  @Before
+  public void createFile() throws Exception {
+    file = File.createTempFile("pm-state", ".state");
+    file.delete();
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  @Test
+  public void activityTransitionsDoNotWrite() {
+    SessionState state = new SessionState(StateFile.open(file, null));
+    StateFile reader = StateFile.open(file, null);
+    assertTrue(state.touch(START, SESSION));
+    assertEquals(START, reader.getLong(StateFile.LAST_SESSION_ID));
+    assertEquals(START, reader.getLong(StateFile.LAST_ACTIVE_TIME));
+
+    for (int i = 1; i <= 100; i++) {
+      assertFalse(state.touch(START + i * 1000L, SESSION));
+      state.markActive(START + i * 1000L + 500L, false);
+    }
+    assertEquals(START, state.getSessionId());
+    assertEquals(START, reader.getLong(StateFile.LAST_ACTIVE_TIME));
+
+    state.markActive(START + 200000L, true);
+    assertEquals(START + 200000L, reader.getLong(StateFile.LAST_ACTIVE_TIME));
+  }
+
+  @Test
+  public void stateSurvivesReload() {
+    SessionState state = new SessionState(StateFile.open(file, null));
+    state.touch(START, SESSION);
+    state.markActive(START + 60000L, true);
+
+    SessionState reloaded = new SessionState(StateFile.open(file, null));
+    assertEquals(START, reloaded.getSessionId());
+    assertFalse("inactive for less than a session", reloaded.touch(START + 60000L + SESSION - 1, SESSION));
+    assertTrue(reloaded.touch(START + 60000L + 3 * SESSION, SESSION));
+  }
+
+  @Test
+  public void oneTimeFlagsAreKept() {
+    SessionState state = new SessionState(StateFile.open(file, null));
+    assertTrue(state.checkFirstTimeUser());
+    assertFalse(state.checkDeviceInfoCollected());
+    for (int i = 0; i < 10; i++) {
+      assertFalse(state.checkFirstTimeUser());
+      assertTrue(state.checkDeviceInfoCollected());
+    }
+
+    SessionState reloaded = new SessionState(StateFile.open(file, null));
+    assertFalse(reloaded.checkFirstTimeUser());
+    assertTrue(reloaded.checkDeviceInfoCollected());
+    reloaded.reset();
+    assertTrue(reloaded.checkFirstTimeUser());
+    assertTrue("device information is kept on reset", reloaded.checkDeviceInfoCollected());
+  }
+}
@@ -0,0 +1,270 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the layout, the migration and the damage handling of {@link StateFile}
+ */
+public class StateFileTest {
+
+  private File file;
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @Before
+  public void createFile() throws Exception {
+    file = File.createTempFile("pm-state", ".state");
+    file.delete();
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  @Test
+  public void newFileIsEmpty() {
+    StateFile state = StateFile.open(file, null);
+    assertEquals(0, state.getLong(StateFile.LAST_SESSION_ID));
+    assertTrue(state.getBoolean(StateFile.IS_NEW_USER, true));
+    assertNull(state.getText(StateFile.DEVICE_ID));
+    assertNull(state.getText(StateFile.LINKING_ID));
+  }
+
+  @Test
+  public void fieldsSurviveReopen() {
+    StateFile state = StateFile.open(file, null);
+    state.putLong(StateFile.LAST_ACTIVE_TIME, 1476700000000L);
+    state.putBoolean(StateFile.OLDUSER, true);
+    state.putText(StateFile.ANONYMOUS_ID, "b1946ac9-2420-4ad0");
+    state.putText(StateFile.LINKING_ID, "usér@example.com");
+    state.putText(StateFile.LINKING_ID, "u-42");
+
+    StateFile reopened = StateFile.open(file, null);
+    assertEquals(1476700000000L, reopened.getLong(StateFile.LAST_ACTIVE_TIME));
+    assertTrue(reopened.getBoolean(StateFile.OLDUSER, false));
+    assertEquals("b1946ac9-2420-4ad0", reopened.getText(StateFile.ANONYMOUS_ID));
+    assertEquals("u-42", reopened.getText(StateFile.LINKING_ID));
+
+    reopened.putText(StateFile.LINKING_ID, null);
+    reopened.removeBoolean(StateFile.OLDUSER);
+    assertNull(StateFile.open(file, null).getText(StateFile.LINKING_ID));
+    assertFalse(StateFile.open(file, null).getBoolean(StateFile.OLDUSER, false));
+  }
+
+  @Test
+  public void preferencesAreMigratedOnce() {
+    MemoryPreferences legacy = new MemoryPreferences();
+    legacy.values.put(Constants.PREF_KEYS.DEVICE_ID, "device-1");
+    legacy.values.put(Constants.PREF_KEYS.LINKING_ID, "u-7");
+    legacy.values.put(Constants.PREF_KEYS.LAST_SESSION_ID, 1476700000000L);
+    legacy.values.put(Constants.PREF_KEYS.IS_NEW_USER, false);
+
+    StateFile state = StateFile.open(file, legacy);
+    assertEquals("device-1", state.getText(StateFile.DEVICE_ID));
+    assertEquals("u-7", state.getText(StateFile.LINKING_ID));
+    assertNull(state.getText(StateFile.ANONYMOUS_ID));
+    assertEquals(1476700000000L, state.getLong(StateFile.LAST_SESSION_ID));
+    assertFalse(state.getBoolean(StateFile.IS_NEW_USER, true));
+    assertFalse(state.getBoolean(StateFile.DEVICEINFO_COLLECTED, false));
+    assertTrue("migrated preferences are cleared", legacy.values.isEmpty());
+
+    legacy.values.put(Constants.PREF_KEYS.DEVICE_ID, "device-2");
+    assertEquals("device-1", StateFile.open(file, legacy).getText(StateFile.DEVICE_ID));
+  }
+
+  @Test
+  public void damagedTextIsUnset() throws Exception {
+    StateFile.open(file, null).putText(StateFile.DEVICE_ID, "device-1");
+    RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    raw.seek(StateFile.DEVICE_ID + 8);
+    raw.write('X');
+    raw.close();
+    assertNull(StateFile.open(file, null).getText(StateFile.DEVICE_ID));
+  }
+
+  @Test
+  public void tooLongTextIsNotStored() {
+    StateFile state = StateFile.open(file, null);
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i <= StateFile.TEXT_CAPACITY; i++) {
+      builder.append('a');
+    }
+    state.putText(StateFile.LINKING_ID, builder.toString());
+    assertNull(state.getText(StateFile.LINKING_ID));
+    assertNull(state.getText(StateFile.ANONYMOUS_ID));
+  }
+
+  /**
+   * {@link SharedPreferences} in memory
+   */
+  private static final class MemoryPreferences implements SharedPreferences {
+    final Map<String, Object> values = new HashMap<>();
+
+    @Override
+    public Map<String, ?> getAll() {
+      return values;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+      return values.containsKey(key) ? (String) values.get(key) : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+      return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+      return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+      return values.containsKey(key) ? (Long) values.get(key) : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+      return values.containsKey(key) ? (Float) values.get(key) : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+      return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+      return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+      return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    private final class MemoryEditor implements Editor {
+      private final Map<String, Object> changes = new HashMap<>();
+
+      private Editor put(String key, Object value) {
+        changes.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putString(String key, String value) {
+        return put(key, value);
+      }
+
+      @Override
+      public Editor putStringSet(String key, Set<String> values) {
+        return put(key, values);
+      }
+
+      @Override
+      public Editor putInt(String key, int value) {
+        return put(key, value);
+      }
+
+      @Override
+      public Editor putLong(String key, long value) {
+        return put(key, value);
+      }
+
+      @Override
+      public Editor putFloat(String key, float value) {
+        return put(key, value);
+      }
+
+      @Override
+      public Editor putBoolean(String key, boolean value) {
+        return put(key, value);
+      }
+
+      @Override
+      public Editor remove(String key) {
+        return put(key, null);
+      }
+
+      @Override
+      public Editor clear() {
+        values.clear();
+        return this;
+      }
+
+      @Override
+      public boolean commit() {
+        apply();
+        return true;
+      }
+
+      @Override
+      public void apply() {
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+          if (null == change.getValue()) {
+            values.remove(change.getKey());
+          } else {
+            values.put(change.getKey(), change.getValue());
+          }
+        }
+      }
+    }
+  }
+}
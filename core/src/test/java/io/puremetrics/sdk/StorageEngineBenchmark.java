@@ -0,0 +1,243 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares appending and draining events with the two storage engines.
+ * The SQLite engine is driven through JDBC with the schema, the pragmas and the statements
+ * of {@link DBHelper}, since the Android SQLite bindings do not run on the JVM.
+ * Run with <code>./gradlew :core:testDebugUnitTest -Ppm.benchmark=true</code>
+ */
+public class StorageEngineBenchmark {
+
+  private static final int EVENTS = 20000;
+  private static final int BATCH_SIZE = Constants.DEFAULT_EVENT_BATCH_SIZE;
+  private static final int ROUNDS = 3;
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @Before
+  public void enabled() {
+    TestUtils.assumeBenchmarksEnabled();
+  }
+
+  @Test
+  public void appendAndDrain() throws Exception {
+    List<List<Event>> batches = new ArrayList<>();
+    for (int i = 0; i < EVENTS / BATCH_SIZE; i++) {
+      List<Event> batch = new ArrayList<>();
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put(Constants.Events.Attributes.PRODUCT_ID, "sku-" + (i * BATCH_SIZE + j));
+        attributes.put(Constants.Events.Attributes.UNIT_PRICE, 1299);
+        attributes.put(Constants.Events.Attributes.CURRENCY, "INR");
+        Event event = new Event(1476700000000L + i, "product_view", System.currentTimeMillis(), attributes);
+        //encoding is the same for both engines and is left out of the measurement
+        event.toRecord();
+        batch.add(event);
+      }
+      batches.add(batch);
+    }
+    for (int round = 0; round < ROUNDS; round++) {
+      runSqlite(batches);
+      runLog(batches);
+    }
+  }
+
+  private static void runLog(List<List<Event>> batches) throws Exception {
+    File directory = File.createTempFile("pm-bench-log", "");
+    directory.delete();
+    MappedEventLog log = new MappedEventLog(directory, Constants.EVENT_LOG_SEGMENT_SIZE);
+    long start = System.nanoTime();
+    for (List<Event> batch : batches) {
+      log.storeEvents(batch);
+    }
+    long appended = System.nanoTime();
+    long lastEventId = log.getLastEventId();
+    long afterEventId = 0;
+    EventStore.EventPage page;
+    while (null != (page = log.getEventsPage(afterEventId, lastEventId,
+            Constants.UPLOAD_PAGE_SIZE, Constants.UPLOAD_CHUNK_MAX_BYTES))) {
+      PayloadWriter writer = new PayloadWriter(page.size + Constants.REQUEST_OVERHEAD_BYTES);
+      log.writeEvents(page, writer);
+      writer.finish();
+      log.deleteEvents(page.afterEventId, page.lastEventId);
+      afterEventId = page.lastEventId;
+    }
+    long drained = System.nanoTime();
+    log.release();
+    report("mapped log", appended - start, drained - appended, size(directory));
+    delete(directory);
+  }
+
+  private static void runSqlite(List<List<Event>> batches) throws Exception {
+    File file = File.createTempFile("pm-bench", ".db");
+    file.delete();
+    Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+    Statement statement = connection.createStatement();
+    statement.execute("PRAGMA journal_mode=WAL");
+    statement.execute("PRAGMA synchronous=NORMAL");
+    statement.execute("PRAGMA temp_store=MEMORY");
+    statement.execute("PRAGMA cache_size=" + Constants.DATABASE_CACHE_SIZE_PAGES);
+    statement.execute("CREATE TABLE " + Constants.TABLE_NAME_EVENTS + "( "
+            + Constants.COLUMN_EVENTS_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + Constants.COLUMN_EVENTS_SESSION + "  INTEGER, "
+            + Constants.COLUMN_EVENTS_EV_JSON_STR + " TEXT, "
+            + Constants.COLUMN_EVENTS_EV_RECORD + " BLOB );");
+    PreparedStatement insert = connection.prepareStatement("INSERT INTO " + Constants.TABLE_NAME_EVENTS
+            + "(" + Constants.COLUMN_EVENTS_SESSION + ", " + Constants.COLUMN_EVENTS_EV_RECORD + ") VALUES (?, ?)");
+    PreparedStatement bounds = connection.prepareStatement("SELECT " + Constants.COLUMN_EVENTS_ID
+            + ", length(" + Constants.COLUMN_EVENTS_EV_RECORD + ") FROM " + Constants.TABLE_NAME_EVENTS
+            + " WHERE " + Constants.COLUMN_EVENTS_ID + ">? AND " + Constants.COLUMN_EVENTS_ID + "<=?"
+            + " ORDER BY " + Constants.COLUMN_EVENTS_ID + " ASC LIMIT " + Constants.UPLOAD_PAGE_SIZE);
+    PreparedStatement select = connection.prepareStatement("SELECT " + Constants.COLUMN_EVENTS_SESSION
+            + ", " + Constants.COLUMN_EVENTS_EV_RECORD + " FROM " + Constants.TABLE_NAME_EVENTS
+            + " WHERE " + Constants.COLUMN_EVENTS_ID + ">? AND " + Constants.COLUMN_EVENTS_ID + "<=?"
+            + " ORDER BY " + Constants.COLUMN_EVENTS_SESSION + " ASC, " + Constants.COLUMN_EVENTS_ID + " ASC");
+    PreparedStatement delete = connection.prepareStatement("DELETE FROM " + Constants.TABLE_NAME_EVENTS
+            + " WHERE " + Constants.COLUMN_EVENTS_ID + ">? AND " + Constants.COLUMN_EVENTS_ID + "<=?");
+
+    long start = System.nanoTime();
+    for (List<Event> batch : batches) {
+      connection.setAutoCommit(false);
+      for (Event event : batch) {
+        insert.setLong(1, event.sessionId);
+        insert.setBytes(2, event.toRecord());
+        insert.executeUpdate();
+      }
+      connection.commit();
+      connection.setAutoCommit(true);
+    }
+    long appended = System.nanoTime();
+    ResultSet last = statement.executeQuery("SELECT max(" + Constants.COLUMN_EVENTS_ID + ") FROM "
+            + Constants.TABLE_NAME_EVENTS);
+    long lastEventId = last.getLong(1);
+    last.close();
+    long afterEventId = 0;
+    while (true) {
+      bounds.setLong(1, afterEventId);
+      bounds.setLong(2, lastEventId);
+      ResultSet page = bounds.executeQuery();
+      long pageLastEventId = afterEventId;
+      int size = 0;
+      int count = 0;
+      while (page.next()) {
+        int eventSize = page.getInt(2) * Constants.EVENT_RECORD_EXPANSION;
+        if (count > 0 && size + eventSize > Constants.UPLOAD_CHUNK_MAX_BYTES) {
+          break;
+        }
+        size += eventSize;
+        count++;
+        pageLastEventId = page.getLong(1);
+      }
+      page.close();
+      if (count == 0) {
+        break;
+      }
+      select.setLong(1, afterEventId);
+      select.setLong(2, pageLastEventId);
+      ResultSet events = select.executeQuery();
+      PayloadWriter writer = new PayloadWriter(size + Constants.REQUEST_OVERHEAD_BYTES);
+      writer.beginArray();
+      long sessionId = -1;
+      boolean sessionOpen = false;
+      while (events.next()) {
+        long curSession = events.getLong(1);
+        if (!sessionOpen || curSession != sessionId) {
+          if (sessionOpen) {
+            writer.endSession();
+          }
+          sessionId = curSession;
+          sessionOpen = true;
+          writer.beginSession(sessionId);
+        }
+        EventCodec.decode(events.getBytes(2), writer);
+      }
+      events.close();
+      if (sessionOpen) {
+        writer.endSession();
+      }
+      writer.endArray();
+      writer.finish();
+      delete.setLong(1, afterEventId);
+      delete.setLong(2, pageLastEventId);
+      delete.executeUpdate();
+      afterEventId = pageLastEventId;
+    }
+    long drained = System.nanoTime();
+    long bytes = file.length() + new File(file.getPath() + "-wal").length();
+    connection.close();
+    report("sqlite", appended - start, drained - appended, bytes);
+    file.delete();
+    new File(file.getPath() + "-wal").delete();
+    new File(file.getPath() + "-shm").delete();
+  }
+
+  private static void report(String engine, long appendNanos, long drainNanos, long bytes) {
+    System.out.println(String.format(Locale.US, "%-10s append %7d ns/event  drain %7d ns/event  disk after drain %8d bytes",
+            engine, appendNanos / EVENTS, drainNanos / EVENTS, bytes));
+  }
+
+  private static long size(File directory) {
+    long size = 0;
+    File[] files = directory.listFiles();
+    if (null != files) {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+    return size;
+  }
+
+  private static void delete(File directory) {
+    File[] files = directory.listFiles();
+    if (null != files) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fires sync triggers from several threads at a {@link SyncCoordinator} and checks that
+ * the syncs never overlap and that no trigger is lost
+ */
+public class SyncCoordinatorTest {
+
+  private static final long STALE = 60 * 1000L;
+
+  private ExecutorService workers;
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger overlaps = new AtomicInteger();
+  private final AtomicInteger runs = new AtomicInteger();
+  private final AtomicLong lastRunStart = new AtomicLong();
+
+  @Before
+  public void startWorkers() {
+    workers = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void stopWorkers() {
+    workers.shutdownNow();
+  }
+
+  @Test
+  public void transitions() {
+    SyncCoordinator coordinator = new SyncCoordinator(STALE);
+    assertEquals(SyncCoordinator.IDLE, coordinator.getState());
+    assertTrue(coordinator.request(0));
+    assertFalse(coordinator.request(1));
+    assertEquals(SyncCoordinator.SCHEDULED, coordinator.getState());
+    assertTrue(coordinator.begin());
+    assertFalse(coordinator.begin());
+    assertEquals(SyncCoordinator.UPLOADING, coordinator.getState());
+    assertFalse(coordinator.finish(true));
+    assertEquals(SyncCoordinator.BACKOFF, coordinator.getState());
+    assertTrue(coordinator.request(2));
+    assertTrue(coordinator.begin());
+    assertFalse(coordinator.request(3));
+    assertFalse(coordinator.request(4));
+    //both triggers during the upload make one follow-up run
+    assertTrue(coordinator.finish(false));
+    assertEquals(SyncCoordinator.UPLOADING, coordinator.getState());
+    assertFalse(coordinator.finish(false));
+    assertEquals(SyncCoordinator.IDLE, coordinator.getState());
+  }
+
+  @Test
+  public void droppedSyncIsScheduledAgain() {
+    SyncCoordinator coordinator = new SyncCoordinator(STALE);
+    assertTrue(coordinator.request(0));
+    //the task was never run
+    assertFalse(coordinator.request(STALE));
+    assertTrue(coordinator.request(STALE + 1));
+    assertTrue(coordinator.begin());
+    assertFalse(coordinator.begin());
+  }
+
+  @Test
+  public void concurrentTriggersAreCoalesced() throws Exception {
+    final SyncCoordinator coordinator = new SyncCoordinator(STALE);
+    final int threads = 8;
+    final int triggers = 2000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicLong lastTrigger = new AtomicLong();
+    final AtomicInteger submitted = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < triggers; i++) {
+              lastTrigger.set(System.nanoTime());
+              if (coordinator.request(System.currentTimeMillis())) {
+                submitted.incrementAndGet();
+                workers.execute(sync(coordinator));
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (coordinator.getState() != SyncCoordinator.IDLE && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(SyncCoordinator.IDLE, coordinator.getState());
+    assertEquals(0, overlaps.get());
+    assertTrue(runs.get() > 0);
+    //far fewer syncs than triggers, each submitted one runs at least once
+    assertTrue("runs: " + runs.get(), runs.get() < threads * triggers / 10);
+    assertTrue(runs.get() >= submitted.get());
+    //the last trigger is covered by a run which started after it
+    assertTrue(lastRunStart.get() >= lastTrigger.get());
+  }
+
+  private Runnable sync(final SyncCoordinator coordinator) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        if (!coordinator.begin()) {
+          return;
+        }
+        do {
+          lastRunStart.set(System.nanoTime());
+          runs.incrementAndGet();
+          if (running.incrementAndGet() > 1) {
+            overlaps.incrementAndGet();
+          }
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+        } while (coordinator.finish(false));
+      }
+    };
+  }
+}
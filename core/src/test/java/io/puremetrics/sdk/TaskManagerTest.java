@@ -0,0 +1,159 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills the storage lane of the {@link TaskManager} and checks which tasks the overflow policy applies to
+ */
+public class TaskManagerTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @After
+  public void drain() throws Exception {
+    release.countDown();
+    TaskManager.getInstance().executeStorageTask(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get(10, TimeUnit.SECONDS);
+    TaskManager.getInstance().setOverflowPolicy(Constants.DEFAULT_OVERFLOW_POLICY, Constants.DEFAULT_OVERFLOW_BLOCK_TIMEOUT);
+  }
+
+  @Test
+  public void tasksAreHeldInsteadOfDropped() throws Exception {
+    TaskManager manager = TaskManager.getInstance();
+    manager.setOverflowPolicy(PureMetrics.OVERFLOW_POLICY.DROP_NEWEST, 0);
+    final AtomicInteger ran = new AtomicInteger();
+    fill(manager, ran);
+    long dropped = manager.getDroppedTasks();
+    Future<?> held = manager.executeStorageTask(count(ran));
+    manager.tryExecuteStorageTask(count(ran));
+    assertEquals(dropped + 1, manager.getDroppedTasks());
+
+    release.countDown();
+    held.get(10, TimeUnit.SECONDS);
+    assertEquals(Constants.TASK_QUEUE_CAPACITY + 1, ran.get());
+  }
+
+  @Test
+  public void dropOldestOnlyDropsDroppableTasks() throws Exception {
+    TaskManager manager = TaskManager.getInstance();
+    manager.setOverflowPolicy(PureMetrics.OVERFLOW_POLICY.DROP_OLDEST, 0);
+    final AtomicInteger ran = new AtomicInteger();
+    fill(manager, ran);
+    long dropped = manager.getDroppedTasks();
+    //nothing droppable is queued, the new task is dropped
+    manager.tryExecuteStorageTask(count(ran));
+    assertEquals(dropped + 1, manager.getDroppedTasks());
+
+    release.countDown();
+    manager.executeStorageTask(count(ran)).get(10, TimeUnit.SECONDS);
+    assertEquals(Constants.TASK_QUEUE_CAPACITY + 1, ran.get());
+  }
+
+  @Test
+  public void onlyStorageTasksAreSpilled() throws Exception {
+    TaskManager manager = TaskManager.getInstance();
+    manager.setOverflowPolicy(PureMetrics.OVERFLOW_POLICY.SPILL_TO_DISK, 0);
+    final AtomicInteger ran = new AtomicInteger();
+    fill(manager, ran);
+    long spilled = manager.getSpilledTasks();
+    final AtomicReference<Thread> thread = new AtomicReference<>();
+    manager.executeStorageTask(new Runnable() {
+      @Override
+      public void run() {
+        thread.set(Thread.currentThread());
+      }
+    });
+    assertSame(Thread.currentThread(), thread.get());
+    assertEquals(spilled + 1, manager.getSpilledTasks());
+
+    final CountDownLatch worker = new CountDownLatch(1);
+    final AtomicReference<Thread> workerThread = new AtomicReference<>();
+    manager.executeTask(new Runnable() {
+      @Override
+      public void run() {
+        workerThread.set(Thread.currentThread());
+        worker.countDown();
+      }
+    });
+    assertTrue(worker.await(10, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), workerThread.get());
+  }
+
+  /**
+   * Blocks the storage lane and fills its queue
+   */
+  private void fill(TaskManager manager, AtomicInteger ran) throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    manager.executeStorageTask(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < Constants.TASK_QUEUE_CAPACITY; i++) {
+      manager.executeStorageTask(count(ran));
+    }
+  }
+
+  private static Runnable count(final AtomicInteger ran) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.incrementAndGet();
+      }
+    };
+  }
+}
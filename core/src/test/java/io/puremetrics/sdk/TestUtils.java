@@ -0,0 +1,112 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.Assume;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helpers shared by the tests and the benchmarks
+ */
+final class TestUtils {
+
+  private static final long WARMUP_NANOS = 1000000000L;
+  private static final long MEASURE_NANOS = 2000000000L;
+
+  private TestUtils() {
+  }
+
+  /**
+   * Skips the calling test unless it is run with <code>./gradlew :core:testDebugUnitTest -Ppm.benchmark=true</code>
+   */
+  static void assumeBenchmarksEnabled() {
+    Assume.assumeTrue(Boolean.getBoolean("pm.benchmark"));
+  }
+
+  /**
+   * Runs the operation repeatedly to warm it up, then measures it
+   *
+   * @param operation The operation to be measured
+   * @return average nanoseconds per operation
+   */
+  static long measure(Runnable operation) {
+    run(operation, WARMUP_NANOS);
+    return run(operation, MEASURE_NANOS);
+  }
+
+  /**
+   * Runs the operation repeatedly for the duration
+   *
+   * @return average nanoseconds per operation
+   */
+  private static long run(Runnable operation, long durationNanos) {
+    long operations = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      operation.run();
+      operations++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < durationNanos);
+    return elapsed / operations;
+  }
+
+  /**
+   * Reads a stream to its end
+   *
+   * @param in The {@link InputStream} to be read, it is not closed
+   * @return the bytes read
+   * @throws IOException if reading failed
+   */
+  static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * A small request body which differs by its index
+   *
+   * @param index The index of the payload
+   * @return the {@link Payload}
+   * @throws IOException if the payload could not be written
+   */
+  static Payload payload(int index) throws IOException {
+    PayloadWriter writer = new PayloadWriter(64);
+    writer.beginObject();
+    writer.name(Constants.RequestAttributes.TS).value(1476700000000L + index);
+    writer.endObject();
+    return writer.finish();
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends payloads with the {@link Transport} implementations to a local stand-in
+ * for the PureMetrics endpoint which answers slowly
+ */
+public class TransportTest {
+
+  private static final long RESPONSE_DELAY = 100;
+
+  private HttpServer server;
+  private ExecutorService handlers;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile int rejectedRequest = -1;
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    handlers = Executors.newCachedThreadPool();
+    server.setExecutor(handlers);
+    server.createContext("/v1/track", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        int current = inFlight.incrementAndGet();
+        int max;
+        while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current)) {
+          //retry
+        }
+        InputStream body = exchange.getRequestBody();
+        while (body.read() != -1) {
+          //discard
+        }
+        try {
+          Thread.sleep(RESPONSE_DELAY);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        int request = requests.getAndIncrement();
+        inFlight.decrementAndGet();
+        exchange.sendResponseHeaders(request == rejectedRequest ? 500 : 204, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+    handlers.shutdownNow();
+  }
+
+  @Test
+  public void httpTransportSendsOnTheCallingThread() throws Exception {
+    Transport transport = httpTransport();
+    assertEquals(1, transport.getMaxInFlight());
+    for (int i = 0; i < 3; i++) {
+      Future<Integer> result = transport.send(TestUtils.payload(i));
+      assertTrue(result.isDone());
+      assertEquals(204, (int) result.get());
+    }
+    assertEquals(1, maxInFlight.get());
+  }
+
+  @Test
+  public void pipelinedTransportKeepsRequestsInFlight() throws Exception {
+    Transport transport = new PipelinedTransport(httpTransport(), 3);
+    long start = System.nanoTime();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      results.add(transport.send(TestUtils.payload(i)));
+    }
+    for (Future<Integer> result : results) {
+      assertEquals(204, (int) result.get());
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    assertEquals(6, requests.get());
+    assertEquals(3, maxInFlight.get());
+    assertTrue("took " + elapsed + " ms", elapsed < 6 * RESPONSE_DELAY);
+  }
+
+  @Test
+  public void pipelinedTransportReportsRejectedRequests() throws Exception {
+    rejectedRequest = 0;
+    Transport transport = new PipelinedTransport(httpTransport(), 2);
+    Future<Integer> rejected = transport.send(TestUtils.payload(0));
+    assertEquals(500, (int) rejected.get());
+    assertEquals(204, (int) transport.send(TestUtils.payload(1)).get());
+  }
+
+  private HttpTransport httpTransport() throws Exception {
+    URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/track");
+    UploadClient client = new UploadClient(url, Constants.UPLOAD_TIMEOUT, null, null);
+    return new HttpTransport(client, "auth", false, false, Constants.DEFAULT_COMPRESSION_LEVEL);
+  }
+}
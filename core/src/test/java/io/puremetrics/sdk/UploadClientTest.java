@@ -0,0 +1,168 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Uploads to a local HTTPS stand-in for the PureMetrics endpoint and checks that
+ * the requests of an {@link UploadClient} share one connection
+ */
+public class UploadClientTest {
+
+  private static final char[] PASSWORD = "puremetrics".toCharArray();
+
+  private HttpsServer server;
+  private SSLContext sslContext;
+  private final Set<String> connections = Collections.synchronizedSet(new HashSet<String>());
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile int[] responseCodes = {204};
+
+  @BeforeClass
+  public static void quiet() {
+    PureMetrics.withBuilder().setLoggingLevel(PureMetrics.LOG_LEVEL.NONE);
+  }
+
+  @Before
+  public void startServer() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = getClass().getClassLoader().getResourceAsStream("localhost.jks");
+    try {
+      keyStore.load(in, PASSWORD);
+    } finally {
+      in.close();
+    }
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, PASSWORD);
+    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(keyStore);
+    sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+
+    server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+    server.createContext("/v1/track", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress().toString());
+        InputStream body = exchange.getRequestBody();
+        while (body.read() != -1) {
+          //discard
+        }
+        int[] codes = responseCodes;
+        int code = codes[Math.min(requests.getAndIncrement(), codes.length - 1)];
+        if (code == 204) {
+          exchange.sendResponseHeaders(code, -1);
+        } else {
+          byte[] message = "{\"error\":\"rejected\"}".getBytes("UTF-8");
+          exchange.sendResponseHeaders(code, message.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(message);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void uploadsReuseTheConnection() throws Exception {
+    UploadClient client = client();
+    for (int i = 0; i < 5; i++) {
+      assertEquals(204, client.upload("auth", TestUtils.payload(i), false, i % 2 == 0, Constants.DEFAULT_COMPRESSION_LEVEL));
+    }
+    assertEquals(5, requests.get());
+    assertEquals("connections: " + connections, 1, connections.size());
+  }
+
+  @Test
+  public void retriesReuseTheConnection() throws Exception {
+    responseCodes = new int[]{412, 412, 204};
+    assertEquals(204, client().upload("auth", TestUtils.payload(0), false, true, Constants.DEFAULT_COMPRESSION_LEVEL));
+    assertEquals(3, requests.get());
+    assertEquals("connections: " + connections, 1, connections.size());
+  }
+
+  @Test
+  public void retriesGiveUpWithTheLastResponse() throws Exception {
+    responseCodes = new int[]{412};
+    assertEquals(412, client().upload("auth", TestUtils.payload(0), false, true, Constants.DEFAULT_COMPRESSION_LEVEL));
+    assertEquals(Constants.MAX_PRECONDITION_RETRIES + 1, requests.get());
+  }
+
+  @Test
+  public void rejectedUploadKeepsTheConnection() throws Exception {
+    responseCodes = new int[]{500, 204};
+    UploadClient client = client();
+    assertEquals(500, client.upload("auth", TestUtils.payload(0), false, false, Constants.DEFAULT_COMPRESSION_LEVEL));
+    assertEquals(204, client.upload("auth", TestUtils.payload(1), false, false, Constants.DEFAULT_COMPRESSION_LEVEL));
+    assertEquals("connections: " + connections, 1, connections.size());
+  }
+
+  private UploadClient client() throws Exception {
+    URL url = new URL("https://127.0.0.1:" + server.getAddress().getPort() + "/v1/track");
+    return new UploadClient(url, Constants.UPLOAD_TIMEOUT, sslContext.getSocketFactory(), new HostnameVerifier() {
+      @Override
+      public boolean verify(String hostname, SSLSession session) {
+        return "127.0.0.1".equals(hostname);
+      }
+    });
+  }
+}
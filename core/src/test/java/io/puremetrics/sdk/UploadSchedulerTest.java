@@ -0,0 +1,132 @@
+/**
+ * Modified MIT License
+ * <p>
+ * Copyright 2016 PureMetrics
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * 1. The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * 2. All copies of substantial portions of the Software may only be used in connection
+ * with services provided by PureMetrics.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.puremetrics.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the backoff of {@link UploadScheduler} and that it is kept in the {@link StateFile}
+ */
+public class UploadSchedulerTest {
+
+  private static final long NOW = 1476700000000L;
+
+  private File file;
+  private StateFile stateFile;
+
+  @Before
+  public void createFile() throws Exception {
+    file = File.createTempFile("pm-state", ".state");
+    file.delete();
+    stateFile = StateFile.open(file, null);
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  @Test
+  public void backoffDoublesWithJitterUpToTheMaximum() {
+    Random random = new Random(7);
+    for (int attempt = 1; attempt <= 40; attempt++) {
+      long delay = Math.min(Constants.UPLOAD_RETRY_MAX_DELAY,
+              Constants.UPLOAD_RETRY_BASE_DELAY << Math.min(attempt - 1, 30));
+      for (int i = 0; i < 100; i++) {
+        long jittered = UploadScheduler.backoffDelay(attempt, Constants.UPLOAD_RETRY_BASE_DELAY,
+                Constants.UPLOAD_RETRY_MAX_DELAY, random);
+        assertTrue(attempt + ": " + jittered, jittered >= delay / 2 && jittered <= delay);
+      }
+    }
+  }
+
+  @Test
+  public void transientFailuresAreRetriedWithinTheBudget() {
+    UploadScheduler scheduler = new UploadScheduler(stateFile, new Random(1));
+    assertTrue(scheduler.isDue(NOW));
+    long previous = 0;
+    for (int failure = 1; failure <= Constants.MAX_UPLOAD_RETRIES; failure++) {
+      long delay = scheduler.onFailure(503, NOW);
+      assertTrue(failure + ": " + delay, delay >= Constants.UPLOAD_RETRY_BASE_DELAY / 2);
+      assertTrue(failure + ": " + delay, delay > previous / 2);
+      assertEquals(NOW + delay, scheduler.getNextAttemptTime());
+      assertFalse(scheduler.isDue(NOW));
+      assertTrue(scheduler.isDue(NOW + delay));
+      previous = delay;
+    }
+    //out of retries, the next attempt time still holds back syncs
+    assertEquals(-1, scheduler.onFailure(Transport.NO_RESPONSE, NOW));
+    assertFalse(scheduler.isDue(NOW));
+
+    scheduler.onSuccess();
+    assertTrue(scheduler.isDue(NOW));
+    assertEquals(0, scheduler.getNextAttemptTime());
+    long delay = scheduler.onFailure(500, NOW);
+    assertTrue(delay <= Constants.UPLOAD_RETRY_BASE_DELAY);
+  }
+
+  @Test
+  public void otherFailuresWaitForTheLongestDelay() {
+    UploadScheduler scheduler = new UploadScheduler(stateFile, new Random(1));
+    assertEquals(-1, scheduler.onFailure(400, NOW));
+    long delay = scheduler.getNextAttemptTime() - NOW;
+    assertTrue(delay >= Constants.UPLOAD_RETRY_MAX_DELAY / 2 && delay <= Constants.UPLOAD_RETRY_MAX_DELAY);
+    assertTrue(UploadScheduler.isTransient(429));
+    assertFalse(UploadScheduler.isTransient(401));
+  }
+
+  @Test
+  public void backoffSurvivesReopening() {
+    UploadScheduler scheduler = new UploadScheduler(stateFile, new Random(1));
+    scheduler.onFailure(500, NOW);
+    long delay = scheduler.onFailure(500, NOW);
+    stateFile.force();
+
+    UploadScheduler reopened = new UploadScheduler(StateFile.open(file, null), new Random(1));
+    assertEquals(NOW + delay, reopened.getNextAttemptTime());
+    assertFalse(reopened.isDue(NOW));
+    //the third failure in a row backs off from the third step
+    assertTrue(reopened.onFailure(500, NOW) >= 2 * Constants.UPLOAD_RETRY_BASE_DELAY);
+  }
+
+  @Test
+  public void clockSetBackDoesNotStallUploads() {
+    UploadScheduler scheduler = new UploadScheduler(stateFile, new Random(1));
+    scheduler.onFailure(500, NOW);
+    assertFalse(scheduler.isDue(NOW));
+    assertTrue(scheduler.isDue(NOW - Constants.UPLOAD_RETRY_MAX_DELAY - 1));
+  }
+}